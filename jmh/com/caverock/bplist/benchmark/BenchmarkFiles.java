@@ -0,0 +1,17 @@
+package com.caverock.bplist.benchmark;
+
+import java.io.File;
+
+// Locates the sample files used by the benchmarks.
+// The build passes the TestFiles directory in the bplist.testFiles system property.
+class BenchmarkFiles
+{
+    static File  testFile(String name)
+    {
+        File  dir = new File(System.getProperty("bplist.testFiles", "TestFiles"));
+        File  file = new File(dir, name);
+        if (!file.canRead())
+            throw new IllegalStateException("Cannot read test file \"" + file + "\"");
+        return file;
+    }
+}
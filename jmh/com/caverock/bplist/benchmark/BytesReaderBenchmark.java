@@ -0,0 +1,126 @@
+package com.caverock.bplist.benchmark;
+
+import com.caverock.bplist.ArrayBytesReader;
+import com.caverock.bplist.BytesReader;
+import com.caverock.bplist.MappedBytesReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The BytesReader primitive reads, over a buffer of random data.
+ * Each benchmark op reads through the whole buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BytesReaderBenchmark
+{
+    @Param({"array", "mapped"})
+    public String  backing;
+
+    @Param({"1048576"})
+    public int  size;
+
+    private BytesReader  in;
+    private Path         tempFile;
+
+
+    @Setup
+    public void  setup() throws IOException
+    {
+        byte[]  bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        if (backing.equals("mapped"))
+        {
+            tempFile = Files.createTempFile("bplist-bench", ".bin");
+            Files.write(tempFile, bytes);
+            in = new MappedBytesReader(tempFile);
+        }
+        else
+        {
+            in = new ArrayBytesReader(bytes);
+        }
+    }
+
+
+    @TearDown
+    public void  tearDown() throws IOException
+    {
+        if (tempFile != null)
+            Files.deleteIfExists(tempFile);
+    }
+
+
+    @Benchmark
+    public long  readUnsignedByte()
+    {
+        in.seek(0);
+        long  sum = 0;
+        for (long n = in.length(); n > 0; n--)
+            sum += in.readUnsignedByte();
+        return sum;
+    }
+
+
+    @Benchmark
+    public long  readUnsignedShortBE()
+    {
+        in.seek(0);
+        long  sum = 0;
+        for (long n = in.length() / 2; n > 0; n--)
+            sum += in.readUnsignedShortBE();
+        return sum;
+    }
+
+
+    @Benchmark
+    public long  readUnsignedIntBE()
+    {
+        in.seek(0);
+        long  sum = 0;
+        for (long n = in.length() / 4; n > 0; n--)
+            sum += in.readUnsignedIntBE();
+        return sum;
+    }
+
+
+    @Benchmark
+    public long  readLongBE()
+    {
+        in.seek(0);
+        long  sum = 0;
+        for (long n = in.length() / 8; n > 0; n--)
+            sum += in.readLongBE();
+        return sum;
+    }
+
+
+    @Benchmark
+    public double  readDoubleBE()
+    {
+        in.seek(0);
+        double  sum = 0;
+        for (long n = in.length() / 8; n > 0; n--)
+            sum += in.readDoubleBE();
+        return sum;
+    }
+
+
+    @Benchmark
+    public long  readASCIIString()
+    {
+        in.seek(0);
+        long  sum = 0;
+        for (long n = in.length() / 32; n > 0; n--)
+            sum += in.readASCIIString(32).length();
+        return sum;
+    }
+}
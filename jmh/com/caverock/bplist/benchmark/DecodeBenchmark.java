@@ -0,0 +1,86 @@
+package com.caverock.bplist.benchmark;
+
+import com.caverock.bplist.BPList;
+import com.caverock.bplist.DecodeOptions;
+import com.caverock.bplist.Dict;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Decoding and JSON output of each of the files in TestFiles/.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark
+{
+    @Param({"Pop.bplist", "airplay.bplist", "iTunes-small.bplist", "int64.bplist", "sample1.bplist",
+            "sample2.bplist", "uid.bplist", "utf16.bplist", "utf16_chinese.bplist"})
+    public String  file;
+
+    private File           path;
+    private byte[]         bytes;
+    private Dict           decoded;
+    private String         firstKey;
+    private DecodeOptions  memoized = new DecodeOptions().setMemoizeObjects(true);
+    private DecodeOptions  lazy = new DecodeOptions().setLazy(true);
+
+
+    @Setup
+    public void  setup() throws IOException
+    {
+        path = BenchmarkFiles.testFile(file);
+        bytes = Files.readAllBytes(path.toPath());
+        decoded = BPList.decode(path).getValue();
+        firstKey = decoded.keySet().iterator().next();
+    }
+
+
+    @Benchmark
+    public Dict  decodeFile()
+    {
+        return BPList.decode(path).getValue();
+    }
+
+
+    @Benchmark
+    public Dict  decodeStream()
+    {
+        return BPList.decode(new ByteArrayInputStream(bytes)).getValue();
+    }
+
+
+    @Benchmark
+    public Dict  decodeMemoized()
+    {
+        return BPList.decode(new ByteArrayInputStream(bytes), memoized).getValue();
+    }
+
+
+    // Lazy decode, followed by a read of just one key of the root dict
+    @Benchmark
+    public Object  decodeLazyOneKey()
+    {
+        return BPList.decode(new ByteArrayInputStream(bytes), lazy).getValue().get(firstKey);
+    }
+
+
+    @Benchmark
+    public String  toJsonString()
+    {
+        return BPList.toJsonString(decoded);
+    }
+
+
+    @Benchmark
+    public Writer  transcodeToJson()
+    {
+        return BPList.transcodeToJson(new ByteArrayInputStream(bytes), new StringWriter()).getValue();
+    }
+}
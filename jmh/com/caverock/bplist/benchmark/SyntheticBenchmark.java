@@ -0,0 +1,120 @@
+package com.caverock.bplist.benchmark;
+
+import com.caverock.bplist.BPList;
+import com.caverock.bplist.DecodeOptions;
+import com.caverock.bplist.Dict;
+import com.caverock.bplist.Result;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Decoding of generated plists, so that the effect of size and shape can be measured.
+ *
+ *   depth        - levels of nested dicts below the root
+ *   fanOut       - entries per dict
+ *   duplication  - fraction (0..1) of string values that are picked from a small shared pool
+ *                  rather than being unique
+ *
+ * Override any of these from the command line with -p, eg. -p depth=4 -p fanOut=20
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyntheticBenchmark
+{
+    @Param({"2", "3"})
+    public int  depth;
+
+    @Param({"10", "50"})
+    public int  fanOut;
+
+    @Param({"0.0", "0.9"})
+    public double  duplication;
+
+    private static final int  POOL_SIZE = 16;
+
+    private byte[]         bytes;
+    private Dict           decoded;
+    private DecodeOptions  memoized = new DecodeOptions().setMemoizeObjects(true);
+    private DecodeOptions  lazy = new DecodeOptions().setLazy(true);
+
+
+    @Setup
+    public void  setup()
+    {
+        Random  random = new Random(42);
+        Dict  root = generate(depth, random, new int[1]);
+        ByteArrayOutputStream  out = new ByteArrayOutputStream();
+        Result<Long>  encoded = BPList.encode(root, out);
+        if (!encoded.isSuccess())
+            throw new IllegalStateException("Cannot encode generated plist: " + encoded.getMessage());
+        bytes = out.toByteArray();
+        Result<Dict>  result = BPList.decode(new ByteArrayInputStream(bytes));
+        if (!result.isSuccess())
+            throw new IllegalStateException("Cannot decode generated plist: " + result.getMessage());
+        decoded = result.getValue();
+    }
+
+
+    private Dict  generate(int level, Random random, int[] uniqueCounter)
+    {
+        Dict  dict = new Dict(fanOut);
+        for (int i = 0; i < fanOut; i++)
+        {
+            String  key = "key" + i;
+            if (level > 0)
+                dict.put(key, generate(level - 1, random, uniqueCounter));
+            else if (i % 2 == 0)
+                dict.put(key, (long) random.nextInt());
+            else if (random.nextDouble() < duplication)
+                dict.put(key, "shared string value " + random.nextInt(POOL_SIZE));
+            else
+                dict.put(key, "unique string value " + (uniqueCounter[0]++));
+        }
+        return dict;
+    }
+
+
+    @Benchmark
+    public Dict  decode()
+    {
+        return BPList.decode(new ByteArrayInputStream(bytes)).getValue();
+    }
+
+
+    @Benchmark
+    public Dict  decodeMemoized()
+    {
+        return BPList.decode(new ByteArrayInputStream(bytes), memoized).getValue();
+    }
+
+
+    @Benchmark
+    public Object  decodeLazyOneKey()
+    {
+        return BPList.decode(new ByteArrayInputStream(bytes), lazy).getValue().get("key0");
+    }
+
+
+    @Benchmark
+    public String  toJsonString()
+    {
+        return BPList.toJsonString(decoded);
+    }
+
+
+    @Benchmark
+    public Writer  transcodeToJson()
+    {
+        return BPList.transcodeToJson(new ByteArrayInputStream(bytes), new StringWriter()).getValue();
+    }
+}
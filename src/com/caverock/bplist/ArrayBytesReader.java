@@ -0,0 +1,335 @@
+package com.caverock.bplist;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A BytesReader that reads from a byte array held in memory.
+ */
+public class ArrayBytesReader extends BytesReader
+{
+    // Views of the byte array as shorts, ints and longs, at any alignment.
+    // These read a whole value with one load, rather than a byte at a time.
+    private static final VarHandle  SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle  SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle  INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle  INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle  LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle  LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    final byte[]  buf;
+    int           pos = 0;
+
+
+    public ArrayBytesReader(byte[] buf)
+    {
+        if (buf == null)
+            throw new NullPointerException("buf is null");
+        this.buf = buf;
+    }
+
+
+    @Override
+    public long  length()
+    {
+        return buf.length;
+    }
+
+
+    @Override
+    public long  position()
+    {
+        return pos;
+    }
+
+
+    @Override
+    public long  remaining()
+    {
+        return buf.length - pos;
+    }
+
+
+    @Override
+    public boolean  seek(long nextPos)
+    {
+        if (nextPos < 0 || nextPos > buf.length)
+            return false;
+        this.pos = (int) nextPos;
+        return true;
+    }
+
+
+    @Override
+    public BytesReader  duplicate()
+    {
+        ArrayBytesReader  copy = new ArrayBytesReader(buf);
+        copy.pos = pos;
+        return copy;
+    }
+
+
+    @Override
+    protected byte  getByte(long index)
+    {
+        return buf[(int) index];
+    }
+
+
+    @Override
+    protected void  getBytes(long index, byte[] dst, int offset, int length)
+    {
+        System.arraycopy(buf, (int) index, dst, offset, length);
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    @Override
+    public int  read(byte[] out)
+    {
+        int len = Math.min(out.length, buf.length - pos);
+        System.arraycopy(buf, pos, out, 0, len);
+        return len;
+    }
+
+
+    @Override
+    public byte[]  readByteArray(int length)
+    {
+        if (remaining() < length)
+            throw new ArrayIndexOutOfBoundsException("Not enough data remaining in buffer");
+        if (pos == 0)
+            return Arrays.copyOf(buf, length);
+
+        byte[] result = new byte[length];
+        if (length > 0) {
+            System.arraycopy(buf, pos, result, 0, length);
+            pos += length;
+        }
+        return result;
+    }
+
+
+    @Override
+    public Data  readData(int length)
+    {
+        if (remaining() < length)
+            throw new ArrayIndexOutOfBoundsException("Not enough data remaining in buffer");
+        Data  result = new Data(ByteBuffer.wrap(buf, pos, length));
+        pos += length;
+        return result;
+    }
+
+
+    @Override
+    public int[]  readUnsignedByteArray(int length)
+    {
+        if (remaining() < length)
+            throw new ArrayIndexOutOfBoundsException("Not enough data remaining in buffer");
+
+        int[] result = new int[length];
+        for (int i=0; i < length; i++) {
+            result[i] = readUnsignedByte();
+        }
+        return result;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    @Override
+    public byte readByte()
+    {
+        if (remaining() == 0)
+            throw new ArrayIndexOutOfBoundsException("Not enough data remaining in buffer");
+        return buf[pos++];
+    }
+
+
+    @Override
+    public int readUnsignedByte()
+    {
+        if (remaining() == 0)
+            throw new ArrayIndexOutOfBoundsException("Not enough data remaining in buffer");
+        return buf[pos++] & 0xff;   // ANDing with 0xff makes sure byte is treated as unsigned
+    }
+
+
+    @Override
+    public char readChar()
+    {
+        if (remaining() == 0)
+            throw new ArrayIndexOutOfBoundsException("Not enough data remaining in buffer");
+        return (char) (buf[pos++] & 0xff);
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    @Override
+    public short readShortLE()
+    {
+        if (remaining() < 2)
+            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read a short");
+        short result = (short) SHORT_LE.get(buf, pos);
+        pos += 2;
+        return result;
+    }
+
+
+    @Override
+    public int readUnsignedShortLE()
+    {
+        return readShortLE() & 0xffff;
+    }
+
+
+    @Override
+    public short readShortBE()
+    {
+        if (remaining() < 2)
+            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read a short");
+        short result = (short) SHORT_BE.get(buf, pos);
+        pos += 2;
+        return result;
+    }
+
+
+    @Override
+    public int readUnsignedShortBE()
+    {
+        return readShortBE() & 0xffff;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    @Override
+    public int readIntLE()
+    {
+        if (remaining() < 4)
+            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read an int");
+        int result = (int) INT_LE.get(buf, pos);
+        pos += 4;
+        return result;
+    }
+
+
+    @Override
+    public long readUnsignedIntLE()
+    {
+        return readIntLE() & 0xffffffffL;
+    }
+
+
+    @Override
+    public int readIntBE()
+    {
+        if (remaining() < 4)
+            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read an int");
+        int result = (int) INT_BE.get(buf, pos);
+        pos += 4;
+        return result;
+    }
+
+
+    @Override
+    public long readUnsignedIntBE()
+    {
+        return readIntBE() & 0xffffffffL;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    @Override
+    public long readLongLE()
+    {
+        if (remaining() < 8)
+            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read a long");
+        long result = (long) LONG_LE.get(buf, pos);
+        pos += 8;
+        return result;
+    }
+
+
+    @Override
+    public long readLongBE()
+    {
+        if (remaining() < 8)
+            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read a long");
+        long result = (long) LONG_BE.get(buf, pos);
+        pos += 8;
+        return result;
+    }
+
+
+    @Override
+    public long  readNumberBE(int byteCount)
+    {
+        if (remaining() < byteCount)
+            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read a number");
+        long result = getNumberBE(pos, byteCount);
+        pos += byteCount;
+        return result;
+    }
+
+
+    // Offsets and object refs, in a single load
+    @Override
+    protected long  getNumberBE(long index, int byteCount)
+    {
+        int  i = (int) index;
+        switch (byteCount)
+        {
+            case 1:  return buf[i] & 0xff;
+            case 2:  return (short) SHORT_BE.get(buf, i) & 0xffff;
+            case 4:  return (int) INT_BE.get(buf, i) & 0xffffffffL;
+            case 8:  return (long) LONG_BE.get(buf, i);
+            default: throw illegalNumberSize(byteCount);
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    @Override
+    public String  readASCIIString(int length)
+    {
+        if (remaining() < length)
+            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read this string");
+        int from = pos;
+        pos += length;
+        return new String(buf, from, length, StandardCharsets.US_ASCII);
+    }
+
+
+    @Override
+    String  readUTF16(int length, Charset charSet)
+    {
+        int  sz = length * 2;  // two bytes per character
+        if (remaining() < sz)
+            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read this string");
+        int from = pos;
+        pos += sz;
+        return new String(buf, from, sz, charSet);
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+
+}
@@ -2,14 +2,28 @@ package com.caverock.bplist;
 
 import javax.json.*;
 import javax.json.stream.JsonGenerator;
+import javax.xml.stream.XMLStreamException;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
 
 // Helpful sites on the bplist format:
 // https://opensource.apple.com/source/CF/CF-1153.18/CFBinaryPList.c.auto.html
@@ -19,34 +33,501 @@ import java.util.*;
 
 public class BPList
 {
-    private static final int     HEADER_SIZE = 8;
+    static final int             HEADER_SIZE = 8;
     private static final int     FOOTER_SIZE = 16;
 
-    // Apple date epoch.  Worked out using the following code:
-    //Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
-    //cal.set(2001, Calendar.JANUARY, 1, 0, 0, 0);
-    //cal.clear(Calendar.MILLISECOND);
-    //cal.getTimeInMillis();
-    private static final long  APPLE_DATE_EPOCH = 978307200000L;
-
     public static Result<Dict>  decode(String filename)
     {
         return decode(new File(filename));
     }
 
 
+    public static Result<Dict>  decode(String filename, DecodeOptions options)
+    {
+        return decode(new File(filename), options);
+    }
+
+
     public static Result<Dict>  decode(File file)
+    {
+        return decode(file, new DecodeOptions());
+    }
+
+
+    public static Result<Dict>  decode(File file, DecodeOptions options)
+    {
+        DecodeStats  stats = DecodeStats.start(options);
+        Result<BytesReader>  in = readFile(file, options);
+        if (!in.isSuccess())
+            return finish(stats, new Result<>(in.getMessage()));
+        if (stats != null)
+            stats.endRead(in.getValue().length());
+        return finish(stats, decode(in.getValue(), options, stats));
+    }
+
+
+    public static Result<Dict>  decode(InputStream stream)
+    {
+        return decode(stream, new DecodeOptions());
+    }
+
+
+    public static Result<Dict>  decode(InputStream stream, DecodeOptions options)
+    {
+        DecodeStats  stats = DecodeStats.start(options);
+        Result<BytesReader>  in = readStream(stream);
+        if (!in.isSuccess())
+            return finish(stats, new Result<>(in.getMessage()));
+        if (stats != null)
+            stats.endRead(in.getValue().length());
+        return finish(stats, decode(in.getValue(), options, stats));
+    }
+
+
+    /**
+     * Decode a bplist from a SeekableByteChannel, such as a zip entry. The channel is read in pages,
+     * as they are needed, rather than all at once. This is most useful with lazy decoding, or with
+     * {@link #extract(SeekableByteChannel, PlistPath, DecodeOptions)}.
+     *
+     * The channel must stay open for as long as lazy dicts are in use. It is not closed by this method.
+     */
+    public static Result<Dict>  decode(SeekableByteChannel channel)
+    {
+        return decode(channel, new DecodeOptions());
+    }
+
+
+    public static Result<Dict>  decode(SeekableByteChannel channel, DecodeOptions options)
+    {
+        DecodeStats  stats = DecodeStats.start(options);
+        Result<BytesReader>  in = readChannel(channel, options);
+        if (!in.isSuccess())
+            return finish(stats, new Result<>(in.getMessage()));
+        if (stats != null)
+            stats.endRead(in.getValue().length());
+        return finish(stats, decode(in.getValue(), options, stats));
+    }
+
+
+    private static Result<Dict>  decode(BytesReader  in, DecodeOptions options, DecodeStats stats)
+    {
+        Dict  result;
+
+        try {
+
+            Result<Decoder>  doc = openDocument(in, options, stats);
+            if (!doc.isSuccess())
+                return new Result<>(doc.getMessage());
+            Decoder  decoder = doc.getValue();
+
+            Object obj = decoder.getObject(decoder.topObject);
+            if (stats != null)
+                stats.endDecode();
+            if (!(obj instanceof Map))
+                return error("Root object was not a dictionary! We don't know how to decode these! Use this file to update code!");
+
+            //result.put(ROOT_KEY_NAME, (Dict) obj);
+            result = (Dict) obj;
+
+
+            //System.out.println("result: " + new JSONObject(result));
+
+
+            return new Result<>(result);
+        }
+        catch (Exception e)
+        {
+            return error("Error reading file: " + e.getMessage());
+        }
+    }
+
+
+    // Report a decode to its listener, if it has one
+    private static Result<Dict>  finish(DecodeStats stats, Result<Dict> result)
+    {
+        if (stats != null)
+            stats.finish(result.isSuccess() ? null : result.getMessage());
+        return result;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Validation
+
+
+    /**
+     * Check the structure of a bplist file without decoding it.
+     *
+     * The header, trailer and offset table are checked, then every object's marker and size, and
+     * every array and dict ref. No objects are created, so this is much cheaper than a failed decode.
+     * Only the memory map threshold and maximum depth options apply. The root object may be of any
+     * type, so a valid file whose root is not a dict will still fail to decode().
+     *
+     * @return a report of the file's structure, or of the first problem found. Never null.
+     */
+    public static ValidationReport  validate(Path path)
+    {
+        return validate(path, new DecodeOptions());
+    }
+
+
+    public static ValidationReport  validate(Path path, DecodeOptions options)
+    {
+        // Most junk can be rejected from its first few bytes, without reading the rest of the file
+        try (InputStream stream = Files.newInputStream(path))
+        {
+            if (!Arrays.equals(stream.readNBytes(7), "bplist0".getBytes(StandardCharsets.US_ASCII)))
+                return new ValidationReport("Invalid bplist file: Invalid identifier");
+        }
+        catch (IOException e)
+        {
+            // readFile() will report it
+        }
+
+        Result<BytesReader>  in = readFile(path.toFile(), options);
+        if (!in.isSuccess())
+            return new ValidationReport(in.getMessage());
+        return validate(in.getValue(), options);
+    }
+
+
+    public static ValidationReport  validate(InputStream stream)
+    {
+        return validate(stream, new DecodeOptions());
+    }
+
+
+    public static ValidationReport  validate(InputStream stream, DecodeOptions options)
+    {
+        Result<BytesReader>  in = readStream(stream);
+        if (!in.isSuccess())
+            return new ValidationReport(in.getMessage());
+        if (in.getValue().length() < (HEADER_SIZE + FOOTER_SIZE + 1))
+            return new ValidationReport("Invalid bplist file: File is not big enough to be a bplist file");
+        return validate(in.getValue(), options);
+    }
+
+
+    private static ValidationReport  validate(BytesReader in, DecodeOptions options)
+    {
+        try {
+            Result<Trailer>  trailer = readTrailer(in);
+            if (!trailer.isSuccess())
+                return new ValidationReport(trailer.getMessage());
+            return Validator.validate(in, trailer.getValue(), options);
+        }
+        catch (Exception e)
+        {
+            return new ValidationReport("Error reading file: " + e.getMessage());
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Flat decoding
+
+
+    /**
+     * Decode a bplist file to a compact, immutable {@link FlatPlist}, rather than a tree of Dicts.
+     * Only the options for reading the file (eg. the memory map threshold) and the maximum depth apply.
+     * As with decode(), a file that is nested too deeply, or that has an array or dict that contains
+     * itself, fails to decode.
+     */
+    public static Result<FlatPlist>  decodeFlat(File file)
+    {
+        return decodeFlat(file, new DecodeOptions());
+    }
+
+
+    public static Result<FlatPlist>  decodeFlat(File file, DecodeOptions options)
+    {
+        Result<BytesReader>  in = readFile(file, options);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return decodeFlat(in.getValue(), options);
+    }
+
+
+    public static Result<FlatPlist>  decodeFlat(InputStream stream)
+    {
+        return decodeFlat(stream, new DecodeOptions());
+    }
+
+
+    public static Result<FlatPlist>  decodeFlat(InputStream stream, DecodeOptions options)
+    {
+        Result<BytesReader>  in = readStream(stream);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return decodeFlat(in.getValue(), options);
+    }
+
+
+    private static Result<FlatPlist>  decodeFlat(BytesReader in, DecodeOptions options)
+    {
+        try {
+            Result<Decoder>  doc = openDocument(in, options, null);
+            if (!doc.isSuccess())
+                return new Result<>(doc.getMessage());
+            return new Result<>(FlatPlist.build(doc.getValue()));
+        }
+        catch (Exception e)
+        {
+            return error("Error reading file: " + e.getMessage());
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Batch decoding
+
+
+    /**
+     * Decode many files, several at a time.
+     *
+     * @return the results, in the same order as the paths
+     */
+    public static List<Result<Dict>>  decodeAll(Collection<Path> paths, BatchOptions options)
+    {
+        List<Result<Dict>>  results = new ArrayList<>(Collections.nCopies(paths.size(), null));
+        try
+        {
+            new BatchDecoder(options).decodeAll(paths.iterator(), (index, path, result) -> results.set(index, result));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            results.replaceAll(result -> (result != null) ? result : error("Interrupted"));
+        }
+        return results;
+    }
+
+
+    /**
+     * Decode many files, several at a time, passing each result to the consumer as soon as it is ready.
+     * Results are delivered in order of completion. The consumer is always called on the calling thread.
+     *
+     * If the calling thread is interrupted, no more files are started and this method returns early,
+     * with the interrupt flag set.
+     */
+    public static void  decodeAll(Stream<Path> paths, BatchOptions options, BiConsumer<Path, Result<Dict>> consumer)
+    {
+        try
+        {
+            new BatchDecoder(options).decodeAll(paths.iterator(), (index, path, result) -> consumer.accept(path, result));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Path queries
+
+
+    /**
+     * Get a single value out of a bplist file, without decoding the rest of it.
+     * Only the keys on the way to the value, and the value itself, are decoded.
+     *
+     * See {@link PlistPath} for the path syntax.
+     *
+     * @return the value, which is decoded the same way as decode() would, or an error if there is no value at that path
+     * @throws IllegalArgumentException if the path is not valid
+     */
+    public static Result<Object>  extract(File file, String path)
+    {
+        return extract(file, PlistPath.compile(path), new DecodeOptions());
+    }
+
+
+    public static Result<Object>  extract(File file, PlistPath path)
+    {
+        return extract(file, path, new DecodeOptions());
+    }
+
+
+    public static Result<Object>  extract(File file, PlistPath path, DecodeOptions options)
+    {
+        Result<BytesReader>  in = readFile(file, options);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return extract(in.getValue(), path, options);
+    }
+
+
+    public static Result<Object>  extract(InputStream stream, String path)
+    {
+        return extract(stream, PlistPath.compile(path), new DecodeOptions());
+    }
+
+
+    public static Result<Object>  extract(InputStream stream, PlistPath path)
+    {
+        return extract(stream, path, new DecodeOptions());
+    }
+
+
+    public static Result<Object>  extract(InputStream stream, PlistPath path, DecodeOptions options)
+    {
+        Result<BytesReader>  in = readStream(stream);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return extract(in.getValue(), path, options);
+    }
+
+
+    public static Result<Object>  extract(SeekableByteChannel channel, String path)
+    {
+        return extract(channel, PlistPath.compile(path), new DecodeOptions());
+    }
+
+
+    /**
+     * Extract a single value from a bplist in a SeekableByteChannel. Only the pages of the channel
+     * that hold the trailer, the offset table and the objects along the path are read.
+     */
+    public static Result<Object>  extract(SeekableByteChannel channel, PlistPath path, DecodeOptions options)
+    {
+        Result<BytesReader>  in = readChannel(channel, options);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return extract(in.getValue(), path, options);
+    }
+
+
+    private static Result<Object>  extract(BytesReader in, PlistPath path, DecodeOptions options)
+    {
+        try {
+            Result<Decoder>  doc = openDocument(in, options, null);
+            if (!doc.isSuccess())
+                return new Result<>(doc.getMessage());
+            Decoder  decoder = doc.getValue();
+
+            int  objectIndex = decoder.find(path);
+            if (objectIndex < 0)
+                return error("No value at path: " + path);
+            return new Result<>(decoder.getObject(objectIndex));
+        }
+        catch (Exception e)
+        {
+            return error("Error reading file: " + e.getMessage());
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Keyed archives
+
+
+    /**
+     * Decode a plist written by NSKeyedArchiver, and resolve all of its Uid references.
+     * See {@link KeyedArchive} for how the archived objects are converted.
+     *
+     * @return the {@code $top} dict of the archive, with its values resolved
+     */
+    public static Result<Dict>  decodeKeyedArchive(File file)
+    {
+        return decodeKeyedArchive(file, new DecodeOptions());
+    }
+
+
+    public static Result<Dict>  decodeKeyedArchive(File file, DecodeOptions options)
+    {
+        Result<Dict>  archive = decode(file, options);
+        return archive.isSuccess() ? KeyedArchive.resolve(archive.getValue()) : archive;
+    }
+
+
+    public static Result<Dict>  decodeKeyedArchive(InputStream stream)
+    {
+        return decodeKeyedArchive(stream, new DecodeOptions());
+    }
+
+
+    public static Result<Dict>  decodeKeyedArchive(InputStream stream, DecodeOptions options)
+    {
+        Result<Dict>  archive = decode(stream, options);
+        return archive.isSuccess() ? KeyedArchive.resolve(archive.getValue()) : archive;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Event based parsing
+
+
+    /**
+     * Walk the object graph of a bplist file, reporting each object to the handler as it is
+     * read. No Dict or array trees are built.
+     *
+     * @return the handler that was passed in, if the file was parsed successfully.
+     */
+    public static <H extends PlistHandler> Result<H>  parse(File file, H handler)
+    {
+        return parse(file, handler, new DecodeOptions());
+    }
+
+
+    public static <H extends PlistHandler> Result<H>  parse(File file, H handler, DecodeOptions options)
+    {
+        Result<BytesReader>  in = readFile(file, options);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return parse(in.getValue(), handler, options);
+    }
+
+
+    public static <H extends PlistHandler> Result<H>  parse(InputStream stream, H handler)
+    {
+        return parse(stream, handler, new DecodeOptions());
+    }
+
+
+    public static <H extends PlistHandler> Result<H>  parse(InputStream stream, H handler, DecodeOptions options)
+    {
+        Result<BytesReader>  in = readStream(stream);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return parse(in.getValue(), handler, options);
+    }
+
+
+    private static <H extends PlistHandler> Result<H>  parse(BytesReader in, H handler, DecodeOptions options)
+    {
+        try {
+            Result<Decoder>  doc = openDocument(in, options, null);
+            if (!doc.isSuccess())
+                return new Result<>(doc.getMessage());
+            Decoder  decoder = doc.getValue();
+
+            decoder.walk(decoder.topObject, handler);
+            return new Result<>(handler);
+        }
+        catch (Exception e)
+        {
+            return error("Error reading file: " + e.getMessage());
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    private static Result<BytesReader>  readFile(File file, DecodeOptions options)
     {
         if (!file.canRead())
             return fileNotFound(file.getPath());
         else if (file.length() < (HEADER_SIZE + FOOTER_SIZE + 1))
             return invalidFile("File is not big enough to be a bplist file");
-        else if (file.length() > Integer.MAX_VALUE)
-            return invalidFile("File is too big to read into memory buffer");  // needs to fit in a byte array
 
         try
         {
-            return decode( new BytesReader(Files.readAllBytes(file.toPath())) );
+            // Big files are mapped rather than copied onto the heap.
+            // Files over 2GB have to be, since they won't fit in a byte array.
+            if (file.length() >= options.getMemoryMapThreshold() || file.length() > Integer.MAX_VALUE)
+                return new Result<>( new MappedBytesReader(file.toPath()) );
+            return new Result<>( new ArrayBytesReader(Files.readAllBytes(file.toPath())) );
         }
         catch (IOException e)
         {
@@ -55,11 +536,12 @@ public class BPList
     }
 
 
-    public static Result<Dict>  decode(InputStream stream)
+    private static Result<BytesReader>  readStream(InputStream stream)
     {
-        try (BufferedInputStream  bis = new BufferedInputStream(stream))
+        // readAllBytes() reads in large blocks itself, so there is no need to buffer the stream
+        try (InputStream  in = stream)
         {
-            return decode( new BytesReader(stream.readAllBytes()) );
+            return new Result<>( new ArrayBytesReader(in.readAllBytes()) );
         }
         catch (IOException e)
         {
@@ -68,78 +550,195 @@ public class BPList
     }
 
 
-    private static Result<Dict>  decode(BytesReader  in)
+    private static Result<BytesReader>  readChannel(SeekableByteChannel channel, DecodeOptions options)
     {
-        Dict  result;
+        try
+        {
+            if (channel.size() < (HEADER_SIZE + FOOTER_SIZE + 1))
+                return invalidFile("File is not big enough to be a bplist file");
+            return new Result<>( new ChannelBytesReader(channel, options.getChannelPageSize(), options.getChannelCachePages()) );
+        }
+        catch (IOException e)
+        {
+            return error("Error reading file: " + e.getMessage());
+        }
+    }
 
-        try {
 
-            // Check the header
-            // Check the special identifier string "bplist"
-            in.seek(0);
-            if (!in.readASCIIString(7).equals("bplist0"))
-                return invalidFile("Invalid identifier");
-            // Check version
-            char version = in.readChar();
-            // We don't car what the version is. It will normally be '0'.
-
-            // Read the footer
-            in.seek(in.length() - 32);
-            in.skip(6);
-            int offsetTableByteCount = in.readUnsignedByte();
-            int objectRefByteCount = in.readUnsignedByte();
-
-            long numObjects = in.readLongBE();
-            long topObjectOffset = in.readLongBE();
-            long offsetTableStart = in.readLongBE();
-
-            /*
-            System.out.println("version = '" + version + "'");
-            System.out.println("offsetTableByteCount = " + offsetTableByteCount);
-            System.out.println("objectRefByteCount = " + objectRefByteCount);
-            System.out.println("numObjects = " + numObjects);
-            System.out.println("topObjectOffset = " + topObjectOffset);
-            System.out.format("offsetTableStart = 0x%x\n", offsetTableStart);
-            */
-
-            if (numObjects < 0)  // According to Apple, there should always be at least one object
-                return invalidFile("File with no objects");
-            if (topObjectOffset < 0 || topObjectOffset >= numObjects)
-                return invalidFile("File with bad topObjectOffset");
-
-            // Offset table pointer sanity checks
-            long  offsetTableSize = numObjects * offsetTableByteCount;
-            if (offsetTableStart < HEADER_SIZE ||
-                    (offsetTableStart + offsetTableSize >= in.length() - FOOTER_SIZE))
-                return invalidFile("Bad offset table");
-
-            if (numObjects > Integer.MAX_VALUE)
-                return error("Offset table too large to read: " + numObjects);
-
-            if (offsetTableByteCount < 1 || offsetTableByteCount > 8)
-                return error("Invalid offset table byte count: " + offsetTableByteCount);
-
-            // Read the offset table
-            long[]  offsetTable = new long[(int) numObjects];
-            in.seek(offsetTableStart);
-            readOffsetTableEntries(offsetTable, in, offsetTableByteCount);
-
-            // Now read the actual objects
-            if (objectRefByteCount < 1 || objectRefByteCount > 8)
-                return error("Invalid object ref byte count: " + objectRefByteCount);
-
-            Object obj = getObject(in, offsetTable, (int) topObjectOffset, objectRefByteCount);
-            if (!(obj instanceof Map))
-                return error("Root object was not a dictionary! We don't know how to decode these! Use this file to update code!");
+    // Check the header and footer, and read the offset table.
+    // Returns a Decoder that is ready to read objects from the document.
+    // 'stats' is null unless the decode is being measured.
+    private static Result<Decoder>  openDocument(BytesReader  in, DecodeOptions options, DecodeStats stats)
+    {
+        Result<Trailer>  result = readTrailer(in);
+        if (!result.isSuccess())
+            return new Result<>(result.getMessage());
+        Trailer  trailer = result.getValue();
+        if (stats != null)
+            stats.endTrailer(trailer.numObjects);
+
+        // Now read the actual objects.
+        // The offset table is left where it is, and read as the objects are looked up.
+        return new Result<>( new Decoder(in, trailer, options, stats) );
+    }
 
-            //result.put(ROOT_KEY_NAME, (Dict) obj);
-            result = (Dict) obj;
 
+    // The fields of the trailer at the end of the file
+    static final class Trailer
+    {
+        int   offsetTableByteCount;
+        int   objectRefByteCount;
+        long  numObjects;
+        long  topObject;
+        long  offsetTableStart;
+    }
 
-            //System.out.println("result: " + new JSONObject(result));
 
+    // Check the header and the trailer, and that the offset table fits in the file
+    private static Result<Trailer>  readTrailer(BytesReader in)
+    {
+        // Check the header
+        // Check the special identifier string "bplist"
+        in.seek(0);
+        if (!in.readASCIIString(7).equals("bplist0"))
+            return invalidFile("Invalid identifier");
+        // Check version
+        char version = in.readChar();
+        // We don't car what the version is. It will normally be '0'.
+
+        // Read the footer
+        Trailer  trailer = new Trailer();
+        in.seek(in.length() - 32);
+        in.skip(6);
+        trailer.offsetTableByteCount = in.readUnsignedByte();
+        trailer.objectRefByteCount = in.readUnsignedByte();
+
+        trailer.numObjects = in.readLongBE();
+        trailer.topObject = in.readLongBE();
+        trailer.offsetTableStart = in.readLongBE();
+
+        /*
+        System.out.println("version = '" + version + "'");
+        System.out.println("offsetTableByteCount = " + trailer.offsetTableByteCount);
+        System.out.println("objectRefByteCount = " + trailer.objectRefByteCount);
+        System.out.println("numObjects = " + trailer.numObjects);
+        System.out.println("topObjectOffset = " + trailer.topObject);
+        System.out.format("offsetTableStart = 0x%x\n", trailer.offsetTableStart);
+        */
+
+        if (trailer.numObjects < 0)  // According to Apple, there should always be at least one object
+            return invalidFile("File with no objects");
+        if (trailer.topObject < 0 || trailer.topObject >= trailer.numObjects)
+            return invalidFile("File with bad topObjectOffset");
+
+        // Offset table pointer sanity checks.
+        // The first two checks stop the last one from overflowing on garbage values.
+        if (trailer.numObjects > in.length() || trailer.offsetTableStart > in.length())
+            return invalidFile("Bad offset table");
+        long  offsetTableSize = trailer.numObjects * trailer.offsetTableByteCount;
+        if (trailer.offsetTableStart < HEADER_SIZE ||
+                (trailer.offsetTableStart + offsetTableSize >= in.length() - FOOTER_SIZE))
+            return invalidFile("Bad offset table");
+
+        if (trailer.numObjects > Integer.MAX_VALUE)
+            return error("Offset table too large to read: " + trailer.numObjects);
+
+        if (trailer.offsetTableByteCount < 1 || trailer.offsetTableByteCount > 8)
+            return error("Invalid offset table byte count: " + trailer.offsetTableByteCount);
+
+        if (trailer.objectRefByteCount < 1 || trailer.objectRefByteCount > 8)
+            return error("Invalid object ref byte count: " + trailer.objectRefByteCount);
+
+        return new Result<>(trailer);
+    }
 
-            return new Result<>(result);
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Encoding
+
+
+    /**
+     * Write a plist out in binary ("bplist00") format.
+     *
+     * Equal strings, numbers, dates, uids and data are written once and shared. Arrays and dicts are
+     * shared if the same instance appears more than once. As well as the types returned by decode(),
+     * any Map with String keys is written as a dict, and any Collection as an array.
+     *
+     * @return the number of bytes written
+     */
+    public static Result<Long>  encode(Dict plist, File file)
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            return encode(plist, channel);
+        }
+        catch (IOException e)
+        {
+            return error("Error writing file: " + e.getMessage());
+        }
+    }
+
+
+    public static Result<Long>  encode(Dict plist, OutputStream stream)
+    {
+        return encode(plist, Channels.newChannel(stream));
+    }
+
+
+    public static Result<Long>  encode(Dict plist, WritableByteChannel channel)
+    {
+        try
+        {
+            return new Result<>( new Encoder().encode(plist, channel) );
+        }
+        catch (IOException e)
+        {
+            return error("Error writing file: " + e.getMessage());
+        }
+        catch (IllegalArgumentException e)
+        {
+            return error("Unable to encode plist: " + e.getMessage());
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Content hashes
+
+
+    /**
+     * Get a hash of the content of a bplist file, without decoding it into Dicts.
+     *
+     * Files that decode to equal values have the same hash, even if their bytes are different.
+     * See {@link ContentHash}. Each object in the file is read once, however many times it is referred to.
+     */
+    public static Result<ContentHash>  contentHash(Path path)
+    {
+        Result<BytesReader>  in = readFile(path.toFile(), new DecodeOptions());
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return contentHash(in.getValue());
+    }
+
+
+    public static Result<ContentHash>  contentHash(InputStream stream)
+    {
+        Result<BytesReader>  in = readStream(stream);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return contentHash(in.getValue());
+    }
+
+
+    private static Result<ContentHash>  contentHash(BytesReader in)
+    {
+        try
+        {
+            Result<Decoder>  doc = openDocument(in, new DecodeOptions(), null);
+            if (!doc.isSuccess())
+                return new Result<>(doc.getMessage());
+            return new Result<>( new ContentHasher(doc.getValue()).hash() );
         }
         catch (Exception e)
         {
@@ -148,6 +747,224 @@ public class BPList
     }
 
 
+    /**
+     * Check whether two bplist files have the same content, by comparing their content hashes.
+     */
+    public static Result<Boolean>  contentEquals(Path a, Path b)
+    {
+        Result<ContentHash>  aHash = contentHash(a);
+        if (!aHash.isSuccess())
+            return new Result<>(aHash.getMessage());
+        Result<ContentHash>  bHash = contentHash(b);
+        if (!bHash.isSuccess())
+            return new Result<>(bHash.getMessage());
+        return new Result<>(aHash.getValue().equals(bHash.getValue()));
+    }
+
+
+    /**
+     * Compare the content of two bplist files.
+     *
+     * Returns the paths, in {@link PlistPath} syntax, of the values that have changed, been added or
+     * been removed. The list is empty if the files have the same content. An empty path means the
+     * top objects are different types. Arrays and dicts are compared by content hash first,
+     * so the parts of the files that are the same are not compared value by value.
+     */
+    public static Result<List<String>>  diff(Path a, Path b)
+    {
+        try
+        {
+            Result<Decoder>  aDoc = openFile(a);
+            if (!aDoc.isSuccess())
+                return new Result<>(aDoc.getMessage());
+            Result<Decoder>  bDoc = openFile(b);
+            if (!bDoc.isSuccess())
+                return new Result<>(bDoc.getMessage());
+
+            List<String>  diffs = new ArrayList<>();
+            ContentHasher.diff(new ContentHasher(aDoc.getValue()), new ContentHasher(bDoc.getValue()), diffs);
+            return new Result<>(diffs);
+        }
+        catch (Exception e)
+        {
+            return error("Error reading file: " + e.getMessage());
+        }
+    }
+
+
+    private static Result<Decoder>  openFile(Path path)
+    {
+        DecodeOptions  options = new DecodeOptions();
+        Result<BytesReader>  in = readFile(path.toFile(), options);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return openDocument(in.getValue(), options, null);
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Updating
+
+
+    /**
+     * Make changes to a bplist file in place, without decoding or rewriting the rest of it.
+     *
+     * The new values, and copies of the arrays and dicts on the way to them, are appended to the file
+     * along with a new offset table and trailer. Everything else stays where it is, so the amount
+     * written depends on the size of the edits and the number of objects, rather than the size of the
+     * file. The objects that were replaced, and the old offset table and trailer, are left in the file
+     * as unused bytes. Use {@link #compact(Path)} to remove them.
+     *
+     * If the file's object refs are too small to refer to the new objects, the whole file is written
+     * again instead, as compact() does.
+     *
+     * @return the number of bytes written
+     */
+    public static Result<Long>  update(Path path, PlistEdits edits)
+    {
+        return update(path, edits, false);
+    }
+
+
+    /**
+     * Write a bplist file out again, without the unused bytes left behind by {@link #update(Path, PlistEdits)}.
+     * The file is decoded and encoded to a temporary file, which then replaces it.
+     *
+     * @return the new length of the file
+     */
+    public static Result<Long>  compact(Path path)
+    {
+        return update(path, new PlistEdits(), true);
+    }
+
+
+    private static Result<Long>  update(Path path, PlistEdits edits, boolean rewrite)
+    {
+        try
+        {
+            if (!rewrite)
+            {
+                if (edits.isEmpty())
+                    return new Result<>(0L);
+                // Reads move the read channel's position, so the file is appended to through a separate channel
+                try (FileChannel  in = FileChannel.open(path, StandardOpenOption.READ);
+                     FileChannel  out = FileChannel.open(path, StandardOpenOption.APPEND))
+                {
+                    Result<Updater>  updater = openUpdater(in, edits, new DecodeOptions());
+                    if (!updater.isSuccess())
+                        return new Result<>(updater.getMessage());
+                    if (updater.getValue().canAppend())
+                        return new Result<>( append(updater.getValue(), out, in.size()) );
+                }
+            }
+
+            // Objects referred to more than once are memoized, so that they are written once
+            Object  top;
+            try (FileChannel  in = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                Result<Updater>  updater = openUpdater(in, edits, new DecodeOptions().setMemoizeObjects(true));
+                if (!updater.isSuccess())
+                    return new Result<>(updater.getMessage());
+                top = updater.getValue().materialize();
+            }
+            return replaceFile(path, top);
+        }
+        catch (IOException e)
+        {
+            return error("Error updating file: " + e.getMessage());
+        }
+        catch (RuntimeException e)
+        {
+            return error("Unable to update plist: " + e.getMessage());
+        }
+    }
+
+
+    // Append the edits to the end of the file, and make sure they have reached the disk.
+    // If anything goes wrong part way through, the file is cut back to its old length,
+    // so that it ends with its old trailer again.
+    private static long  append(Updater updater, FileChannel out, long start) throws IOException
+    {
+        try
+        {
+            long  written = updater.append(out, start);
+            out.force(true);
+            return written;
+        }
+        catch (Throwable e)
+        {
+            try {
+                out.truncate(start);
+                out.force(true);
+            } catch (IOException truncateError) {
+                e.addSuppressed(truncateError);
+            }
+            throw e;
+        }
+    }
+
+
+    private static Result<Updater>  openUpdater(FileChannel channel, PlistEdits edits, DecodeOptions options)
+    {
+        Result<BytesReader>  in = readChannel(channel, options);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        Result<Decoder>  doc = openDocument(in.getValue(), options, null);
+        if (!doc.isSuccess())
+            return new Result<>(doc.getMessage());
+        return new Result<>( new Updater(doc.getValue(), edits) );
+    }
+
+
+    // Encode to a temporary file next to 'path', then move it over 'path'
+    private static Result<Long>  replaceFile(Path path, Object top) throws IOException
+    {
+        Path  temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try
+        {
+            long  written;
+            try (FileChannel  out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                written = new Encoder().encode(top, out);
+                out.force(true);
+            }
+            copyOwnerAndPermissions(path, temp);
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return new Result<>(written);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+
+    // Temporary files are created readable by their owner only. Give the replacement the same
+    // permissions as the original, and the same owner and group if we are allowed to.
+    private static void  copyOwnerAndPermissions(Path from, Path to) throws IOException
+    {
+        PosixFileAttributeView  fromView = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+        PosixFileAttributeView  toView = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+        if (fromView == null || toView == null)
+            return;
+        PosixFileAttributes  attributes = fromView.readAttributes();
+        toView.setPermissions(attributes.permissions());
+        try {
+            toView.setOwner(attributes.owner());
+        } catch (IOException e) {
+            // Only allowed for privileged users on most systems
+        }
+        try {
+            toView.setGroup(attributes.group());
+        } catch (IOException e) {
+            // Only allowed if we are a member of the group
+        }
+    }
+
+
     //------------------------------------------------------------------------------------------------------------------
     // JSON output
 
@@ -178,181 +995,125 @@ public class BPList
     }
 
 
-    //==================================================================================================================
-
-
-
-    private static Result<Dict>  fileNotFound(String filename)
+    /**
+     * Convert a bplist file straight to JSON, without decoding it to a Dict first.
+     *
+     * The output is the same as {@code toJson(writer, decode(file))}, except that dictionary
+     * entries are written in the order they appear in the file. The writer is flushed, but not closed.
+     */
+    public static Result<Writer>  transcodeToJson(File file, Writer writer)
     {
-        return new Result<>("Cannot read file \"" + filename + "\"");
+        return transcodeToJson(file, writer, new DecodeOptions());
     }
 
 
-    private static Result<Dict>  invalidFile(String msg)
+    public static Result<Writer>  transcodeToJson(File file, Writer writer, DecodeOptions options)
     {
-        return new Result<>((msg != null) ? "Invalid bplist file: " + msg : "Invalid bplist file");
+        JsonGenerator  generator = createJsonGenerator(writer);
+        Result<JsonTranscoder>  result = parse(file, new JsonTranscoder(generator), options);
+        generator.flush();
+        return result.isSuccess() ? new Result<>(writer) : new Result<>(result.getMessage());
     }
 
 
-    private static Result<Dict>  error(String msg)
+    public static Result<Writer>  transcodeToJson(InputStream stream, Writer writer)
     {
-        return new Result<>(msg);
+        return transcodeToJson(stream, writer, new DecodeOptions());
     }
 
 
-
-    private static void readOffsetTableEntries(long[] offsetTable, BytesReader in, int offsetTableByteCount)
+    public static Result<Writer>  transcodeToJson(InputStream stream, Writer writer, DecodeOptions options)
     {
-        for (int i = 0; i < offsetTable.length; i++) {
-            offsetTable[i] = readNByteNumber(in, offsetTableByteCount);
-        }
+        JsonGenerator  generator = createJsonGenerator(writer);
+        Result<JsonTranscoder>  result = parse(stream, new JsonTranscoder(generator), options);
+        generator.flush();
+        return result.isSuccess() ? new Result<>(writer) : new Result<>(result.getMessage());
     }
 
 
-    // Read a offset or object table value of size 1..N bytes
-    // We have already checked that N <= 8.
-    private static long readNByteNumber(BytesReader in, int byteCount)
+    /**
+     * Convert a bplist file straight to an XML plist, without decoding it to a Dict first.
+     * Dictionary entries are written in the order they appear in the file. The writer is flushed, but not closed.
+     */
+    public static Result<Writer>  transcodeToXml(File file, Writer writer)
     {
-        return switch (byteCount)
-        {
-            case 1 -> in.readUnsignedByte();
-            case 2 -> in.readUnsignedShortBE();
-            case 4 -> in.readUnsignedIntBE();
-            case 8 -> in.readLongBE();
-            default -> throw new RuntimeException(String.format("Request for integer of illegal size: %d bytes", byteCount));
-        };
+        return transcodeToXml(file, writer, new DecodeOptions());
     }
 
 
-    private static Object  getObject(BytesReader in,
-                                     long[] offsetTable,
-                                     int objectIndex,
-                                     int objectRefByteCount)
+    public static Result<Writer>  transcodeToXml(File file, Writer writer, DecodeOptions options)
     {
-        in.seek(offsetTable[objectIndex]);
-        int marker = in.readByte() & 0xff;
-        if (marker == 0)
-            return null;
-        else if (marker == 8)
-            return Boolean.FALSE;
-        else if (marker == 9)
-            return Boolean.TRUE;
-        //else if (marker == 0x0f)  // "fill byte" = seems to not be ever used?
-
-        int count = marker & 0xf;
+        Result<BytesReader>  in = readFile(file, options);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return transcodeToXml(in.getValue(), writer, options);
+    }
 
-        //System.out.println(String.format("Marker=%x count=%x",marker,count));
-        switch ((marker >> 4) & 0xf)
-        {
-            case 1:  // integer
-                if (count >= 4) {
-                    // Some parsers I've seen suggest these 128bit integers are possible.
-                    // They are not in the Apple "spec" (source) though
-                    return new BigInteger( in.readByteArray(16) );
-                }
-                return readNByteNumber(in, 1 << count);
 
-            case 2:  // real
-                int fsz = 1 << count;
-                if (fsz == 4)
-                    return in.readFloatBE();
-                else if (fsz == 8)
-                    return in.readDoubleBE();
-                else
-                    throw new RuntimeException("Unsupported real number size");
+    public static Result<Writer>  transcodeToXml(InputStream stream, Writer writer)
+    {
+        return transcodeToXml(stream, writer, new DecodeOptions());
+    }
 
-            case 3:  // date
-                if (count != 3)
-                    throw new RuntimeException("Unexpected date object format");
-                return Instant.ofEpochMilli(APPLE_DATE_EPOCH + (long) (1000f * in.readDoubleBE()));
 
-            case 4:  // data
-                if (count == 0xf)
-                    count = extendedCount(in);
-                return in.readUnsignedByteArray(count);
+    public static Result<Writer>  transcodeToXml(InputStream stream, Writer writer, DecodeOptions options)
+    {
+        Result<BytesReader>  in = readStream(stream);
+        if (!in.isSuccess())
+            return new Result<>(in.getMessage());
+        return transcodeToXml(in.getValue(), writer, options);
+    }
 
-            case 5:  // string
-                if (count == 0xf)
-                    count = extendedCount(in);
-                return in.readASCIIString(count);
 
-            case 6:  // string
-                if (count == 0xf)
-                    count = extendedCount(in);
-                return in.readUTF16StringBE(count);
+    private static Result<Writer>  transcodeToXml(BytesReader in, Writer writer, DecodeOptions options)
+    {
+        try
+        {
+            XMLPList.XmlWriter  xmlWriter = new XMLPList.XmlWriter(writer);
+            Result<XMLPList.XmlWriter>  result = parse(in, xmlWriter, options);
+            if (!result.isSuccess())
+                return new Result<>(result.getMessage());
+            xmlWriter.finish();
+            return new Result<>(writer);
+        }
+        catch (XMLStreamException | IOException e)
+        {
+            return error("Error writing file: " + e.getMessage());
+        }
+    }
 
-            case 8:  // uid
-                return new Uid(readNByteNumber(in, count + 1));
 
-            case 10:  // array
-            case 12:  // set
-                if (count == 0xf)
-                    count = extendedCount(in);
-                return parseArray(in, count, offsetTable, objectRefByteCount);
+    private static JsonGenerator  createJsonGenerator(Writer writer)
+    {
+        Map<String, Boolean> config = new HashMap<>();
+        config.put(JsonGenerator.PRETTY_PRINTING, true);
+        return Json.createGeneratorFactory(config).createGenerator(writer);
+    }
 
-            case 13:  // dict
-                if (count == 0xf)
-                    count = extendedCount(in);
-                return parseDict(in, count, offsetTable, objectRefByteCount);
 
-            default:
-                // The Apple source defines some other marker types.
-                // But it seems like they might not have ever really been used, and are now no longer supported.
-                throw new RuntimeException("Unexpected marker variant");
-        }
+    //==================================================================================================================
 
-    }
 
 
-    private static int  extendedCount(BytesReader in)
+    private static <T> Result<T>  fileNotFound(String filename)
     {
-        int next = in.readUnsignedByte();
-        int pow = next & 0xf;
-        if ((next & 0xf0) != 0x10)
-            throw new RuntimeException("Bad extended count marker: "+next);
-        return (int) readNByteNumber(in, 1 << pow);
+        return new Result<>("Cannot read file \"" + filename + "\"");
     }
 
 
-    private static Object[]  parseArray(BytesReader in, int count, long[] offsetTable, int objectRefByteCount)
+    private static <T> Result<T>  invalidFile(String msg)
     {
-        Object[]  array = new Object[count];
-        for (int i = 0; i < count; i++) {
-            int  vRef = (int) readNByteNumber(in, objectRefByteCount);
-            in.pushPos();
-            array[i] = getObject(in, offsetTable, vRef, objectRefByteCount);
-            in.popPos();
-        }
-        return array;
+        return new Result<>((msg != null) ? "Invalid bplist file: " + msg : "Invalid bplist file");
     }
 
 
-    private static Dict  parseDict(BytesReader in, int count, long[] offsetTable, int objectRefByteCount)
+    private static <T> Result<T>  error(String msg)
     {
-        Dict  dict = new Dict(count);
-        // Read the key and value object numbers
-        int  keyRefsStart = in.position();
-        // How big the block of kRefs (and also the block of vRefs) is
-        int  kvRefSz = count * objectRefByteCount;
-        for (int i = 0; i < kvRefSz; i+=objectRefByteCount)
-        {
-            in.seek(keyRefsStart + i);
-            // Get the key reference id
-            int  kRef = (int) readNByteNumber(in, objectRefByteCount);
-            // Get the actual key object
-            Object k = getObject(in, offsetTable, kRef, objectRefByteCount);
-            if (!(k instanceof String))
-                throw new RuntimeException("Invalid dict key. Expected string.");
-            // Jump now to the value reference id
-            in.seek(keyRefsStart + kvRefSz + i);
-            int  vRef = (int) readNByteNumber(in, objectRefByteCount);
-            Object v = getObject(in, offsetTable, vRef, objectRefByteCount);
-            dict.put((String) k, v);
-        }
-        return dict;
+        return new Result<>(msg);
     }
 
 
+
     //==================================================================================================================
 
 
@@ -368,9 +1129,26 @@ public class BPList
     }
 
 
+    // Type name used to choose how a value is written to JSON.
+    // Subclasses of Dict (eg. the lazy dicts) are treated as a plain Dict, and typed arrays
+    // (eg. the Uid[] stored by Dict.getUidArray()) as Object[].
+    private static String  jsonTypeName(Object val)
+    {
+        if (val instanceof Dict)
+            return "Dict";
+        return (val instanceof Object[]) ? "Object[]" : val.getClass().getSimpleName();
+    }
+
+
+    private static String  jsonDateString(Instant val)
+    {
+        return ZonedDateTime.ofInstant(val, ZoneId.of("GMT")).format(DateTimeFormatter.ISO_INSTANT);
+    }
+
+
     private static void jsonObjectAddEntry(JsonObjectBuilder builder, String key, Object val)
     {
-        switch (val.getClass().getSimpleName())
+        switch (jsonTypeName(val))
         {
             case "Boolean" -> builder.add(key, (Boolean) val);
             case "Integer" -> builder.add(key, (int) val);
@@ -381,10 +1159,13 @@ public class BPList
             case "Object[]" -> builder.add(key, jsonToArray((Object[]) val));
             case "Dict" -> builder.add(key, jsonToMap((Dict) val));
             case "int[]" -> builder.add(key, jsonToArray((int[]) val));
+            case "long[]" -> builder.add(key, jsonToArray((long[]) val));
+            case "double[]" -> builder.add(key, jsonToArray((double[]) val));
+            // Data is written as a base64 string
+            case "Data" -> builder.add(key, ((Data) val).toBase64());
             case "BigInteger" -> builder.add(key, (BigInteger) val);
             // For JSON, we'll just return a date string in the ISO 8601 format
-            case "Instant" -> builder.add(key, ZonedDateTime.ofInstant((Instant) val, ZoneId.of("GMT"))
-                                                            .format(DateTimeFormatter.ISO_INSTANT));
+            case "Instant" -> builder.add(key, jsonDateString((Instant) val));
             case "Uid" -> builder.add(key, ((Uid) val).getUid());
             //default -> System.err.println("NYI: " + val.getClass().getSimpleName());
         }
@@ -411,9 +1192,29 @@ public class BPList
     }
 
 
+    private static JsonArray  jsonToArray(long[] array)
+    {
+        JsonArrayBuilder  builder = Json.createArrayBuilder();
+        for (long entry: array) {
+            builder.add(entry);
+        }
+        return builder.build();
+    }
+
+
+    private static JsonArray  jsonToArray(double[] array)
+    {
+        JsonArrayBuilder  builder = Json.createArrayBuilder();
+        for (double entry: array) {
+            builder.add(entry);
+        }
+        return builder.build();
+    }
+
+
     private static void jsonArrayAddEntry(JsonArrayBuilder builder, Object val)
     {
-        switch (val.getClass().getSimpleName())
+        switch (jsonTypeName(val))
         {
             case "Boolean" -> builder.add((Boolean) val);
             case "Integer" -> builder.add((int) val);
@@ -424,14 +1225,90 @@ public class BPList
             case "Object[]" -> builder.add(jsonToArray((Object[]) val));
             case "Dict" -> builder.add(jsonToMap((Dict) val));
             case "int[]" -> builder.add(jsonToArray((int[]) val));
+            case "long[]" -> builder.add(jsonToArray((long[]) val));
+            case "double[]" -> builder.add(jsonToArray((double[]) val));
+            case "Data" -> builder.add(((Data) val).toBase64());
             case "BigInteger" -> builder.add((BigInteger) val);
             // For JSON, we'll just return a date string in the ISO 8601 format
-            case "Instant" -> builder.add(ZonedDateTime.ofInstant((Instant) val, ZoneId.of("GMT"))
-                                                       .format(DateTimeFormatter.ISO_INSTANT));
+            case "Instant" -> builder.add(jsonDateString((Instant) val));
             case "Uid" -> builder.add(((Uid) val).getUid());
             default -> System.err.println("NYI: " + val.getClass().getSimpleName());
         }
     }
 
 
+    //==================================================================================================================
+
+
+    // Writes the events from the bplist parser straight to a JSON generator
+    private static class JsonTranscoder implements PlistHandler
+    {
+        private final JsonGenerator  generator;
+
+        JsonTranscoder(JsonGenerator generator)
+        {
+            this.generator = generator;
+        }
+
+        @Override
+        public void  startDict(int size)
+        {
+            generator.writeStartObject();
+        }
+
+        @Override
+        public void  key(String key)
+        {
+            generator.writeKey(key);
+        }
+
+        @Override
+        public void  endDict()
+        {
+            generator.writeEnd();
+        }
+
+        @Override
+        public void  startArray(int size)
+        {
+            generator.writeStartArray();
+        }
+
+        @Override
+        public void  endArray()
+        {
+            generator.writeEnd();
+        }
+
+        @Override
+        public void  value(Object val)
+        {
+            if (val == null) {
+                generator.writeNull();
+                return;
+            }
+            switch (jsonTypeName(val))
+            {
+                case "Boolean" -> generator.write((Boolean) val);
+                case "Integer" -> generator.write((int) val);
+                case "Long" -> generator.write((Long) val);
+                case "Float" -> generator.write((Float) val);
+                case "Double" -> generator.write((Double) val);
+                case "String" -> generator.write((String) val);
+                case "int[]" -> {
+                    generator.writeStartArray();
+                    for (int b: (int[]) val)
+                        generator.write(b);
+                    generator.writeEnd();
+                }
+                case "Data" -> generator.write(((Data) val).toBase64());
+                case "BigInteger" -> generator.write((BigInteger) val);
+                case "Instant" -> generator.write(jsonDateString((Instant) val));
+                case "Uid" -> generator.write(((Uid) val).getUid());
+                // Skipping the value would leave the generator part way through an entry
+                default -> throw new IllegalArgumentException("Unsupported object type: " + val.getClass().getName());
+            }
+        }
+    }
+
 }
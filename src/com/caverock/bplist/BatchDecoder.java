@@ -0,0 +1,144 @@
+package com.caverock.bplist;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.*;
+
+/*
+ * Decodes a sequence of files on an executor.
+ *
+ * Files are submitted from the calling thread. Completed results are passed back to it through a
+ * queue, so the consumer is never called concurrently. A file's bytes count against the in-flight
+ * limit until its result has been handed to the consumer, so results waiting in the queue are
+ * covered by the limit too. When the limit has been reached, the calling thread delivers results
+ * until there is room for the next file.
+ */
+class BatchDecoder
+{
+    interface Consumer
+    {
+        void  accept(int index, Path path, Result<Dict> result);
+    }
+
+
+    private static final class Completed
+    {
+        final int           index;
+        final Path          path;
+        final long          size;     // bytes claimed against the in-flight limit
+        final Result<Dict>  result;
+
+        Completed(int index, Path path, long size, Result<Dict> result)
+        {
+            this.index = index;
+            this.path = path;
+            this.size = size;
+            this.result = result;
+        }
+    }
+
+
+    private final BatchOptions                options;
+    private final BlockingQueue<Completed>    completed = new LinkedBlockingQueue<>();
+    private long                              inFlightBytes = 0;   // only used by the calling thread
+    private int                               pending = 0;         // submitted but not yet delivered
+
+
+    BatchDecoder(BatchOptions options)
+    {
+        this.options = options;
+    }
+
+
+    void  decodeAll(Iterator<Path> paths, Consumer consumer) throws InterruptedException
+    {
+        ExecutorService  executor = options.getExecutor();
+        boolean  ownExecutor = (executor == null);
+        if (ownExecutor)
+            executor = Executors.newFixedThreadPool(options.getThreads(), daemonThreadFactory());
+
+        try
+        {
+            int  submitted = 0;
+            while (paths.hasNext())
+            {
+                Path  path = paths.next();
+                int   index = submitted++;
+                long  size = reserve(path, consumer);
+                try
+                {
+                    executor.execute(() -> {
+                        Result<Dict>  result = null;
+                        try {
+                            result = BPList.decode(path.toFile(), options.getDecodeOptions());
+                        } finally {
+                            // Always report back, even if something went badly wrong, so that the caller doesn't wait forever
+                            completed.add(new Completed(index, path, size, (result != null) ? result : new Result<>("Unable to decode file")));
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e)
+                {
+                    completed.add(new Completed(index, path, size, new Result<>("Unable to decode file: " + e.getMessage())));
+                }
+
+                // Hand over anything that has finished while we were submitting
+                for (Completed c; (c = completed.poll()) != null; ) {
+                    deliver(c, consumer);
+                }
+            }
+
+            while (pending > 0) {
+                deliver(completed.take(), consumer);
+            }
+        }
+        finally
+        {
+            if (ownExecutor)
+                executor.shutdownNow();
+        }
+    }
+
+
+    // Deliver results until there is room for this file within the in-flight limit, then claim it.
+    // Returns the number of bytes claimed.
+    private long  reserve(Path path, Consumer consumer) throws InterruptedException
+    {
+        File  file = path.toFile();
+        // A file bigger than the limit claims the whole limit, so it runs on its own
+        long  size = Math.min(Math.max(file.length(), 1), options.getMaxInFlightBytes());
+        // Every claimed byte belongs to a pending file, so this can't wait on an empty queue
+        while (inFlightBytes + size > options.getMaxInFlightBytes()) {
+            deliver(completed.take(), consumer);
+        }
+        inFlightBytes += size;
+        pending++;
+        return size;
+    }
+
+
+    // Hand a result to the consumer, then give its bytes back
+    private void  deliver(Completed c, Consumer consumer)
+    {
+        try {
+            consumer.accept(c.index, c.path, c.result);
+        } finally {
+            inFlightBytes -= c.size;
+            pending--;
+        }
+    }
+
+
+    private static ThreadFactory  daemonThreadFactory()
+    {
+        ThreadFactory  defaultFactory = Executors.defaultThreadFactory();
+        return runnable -> {
+            Thread  thread = defaultFactory.newThread(runnable);
+            thread.setDaemon(true);
+            thread.setName("bplist-batch-" + thread.getName());
+            return thread;
+        };
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.caverock.bplist;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Options for decoding many files at once with {@link BPList#decodeAll(java.util.Collection, BatchOptions)}.
+ */
+public class BatchOptions
+{
+    private DecodeOptions    decodeOptions = new DecodeOptions();
+    private int              threads = Runtime.getRuntime().availableProcessors();
+    private long             maxInFlightBytes = 256L * 1024 * 1024;
+    private ExecutorService  executor = null;
+
+
+    public BatchOptions()
+    {
+    }
+
+
+    /**
+     * The options used to decode each file.
+     */
+    public BatchOptions  setDecodeOptions(DecodeOptions decodeOptions)
+    {
+        this.decodeOptions = decodeOptions;
+        return this;
+    }
+
+    public DecodeOptions  getDecodeOptions()
+    {
+        return decodeOptions;
+    }
+
+
+    /**
+     * The number of files to read and decode at the same time.
+     * The default is the number of available processors.
+     * Ignored if an executor is supplied with {@link #setExecutor(ExecutorService)}.
+     */
+    public BatchOptions  setThreads(int threads)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1");
+        this.threads = threads;
+        return this;
+    }
+
+    public int  getThreads()
+    {
+        return threads;
+    }
+
+
+    /**
+     * The maximum total size of the files being decoded, or decoded and waiting to be passed to the
+     * consumer, at any one time. New files are not started until enough earlier results have been
+     * delivered. A file bigger than this limit is decoded on its own.
+     * The default is 256MB.
+     */
+    public BatchOptions  setMaxInFlightBytes(long maxInFlightBytes)
+    {
+        if (maxInFlightBytes < 1)
+            throw new IllegalArgumentException("maxInFlightBytes must be at least 1");
+        this.maxInFlightBytes = maxInFlightBytes;
+        return this;
+    }
+
+    public long  getMaxInFlightBytes()
+    {
+        return maxInFlightBytes;
+    }
+
+
+    /**
+     * Run the decodes on this executor instead of a pool created for the batch. For example,
+     * on Java 21 or later, {@code Executors.newVirtualThreadPerTaskExecutor()}.
+     * A supplied executor is not shut down when the batch finishes.
+     */
+    public BatchOptions  setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    public ExecutorService  getExecutor()
+    {
+        return executor;
+    }
+
+}
@@ -3,79 +3,97 @@ package com.caverock.bplist;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Stack;
 
-public class BytesReader
+/**
+ * Sequential and random access reads of binary data.
+ *
+ * Positions are longs, so that implementations are not limited to the 2GB that fits in a byte array.
+ *
+ * Subclasses only need to provide length(), position(), seek() and the two absolute getByte() reads.
+ * The default implementations of the other reads are built on those, and can be overridden with faster
+ * versions where the underlying storage allows.
+ */
+public abstract class BytesReader
 {
-    byte[]          buf;
-    int             pos = 0;
-    Stack<Integer>  posStack = null;
+    // Saved positions for pushPos() and popPos()
+    private long[]  posStack = null;
+    private int     posDepth = 0;
 
 
-    public BytesReader(byte[] buf)
-    {
-        if (buf == null)
-            throw new NullPointerException("buf is null");
-        this.buf = buf;
-    }
-
+    public abstract long  length();
 
-    public int  length()
-    {
-        return buf.length;
-    }
+    public abstract long  position();
 
+    public abstract boolean  seek(long nextPos);
 
-    public int  position()
-    {
-        return pos;
-    }
+    // Absolute reads. These do not change the read position.
+    // Callers are responsible for checking that the requested bytes are in range.
+    protected abstract byte  getByte(long index);
 
+    protected abstract void  getBytes(long index, byte[] dst, int offset, int length);
 
-    public int  remaining()
+    // Absolute read of a big-endian unsigned number of 1, 2, 4 or 8 bytes. Eight byte numbers are returned
+    // as is, so may be negative. This is how offsets and object refs are stored.
+    // Subclasses should override this with single loads where they can.
+    protected long  getNumberBE(long index, int byteCount)
     {
-        return buf.length - pos;
+        if (byteCount != 1 && byteCount != 2 && byteCount != 4 && byteCount != 8)
+            throw illegalNumberSize(byteCount);
+        long  result = 0;
+        for (int i = 0; i < byteCount; i++)
+            result = (result << 8) | (getByte(index + i) & 0xff);
+        return result;
     }
 
-
-    public boolean  seek(int nextPos)
-    {
-        if (nextPos < 0 || nextPos > buf.length)
-            return false;
-        this.pos = nextPos;
-        return true;
-    }
+    /**
+     * Returns a new reader over the same data, starting at the same position.
+     * The two readers have independent positions, so they can be used from different threads.
+     */
+    public abstract BytesReader  duplicate();
 
 
-    public boolean  seek(long nextPos)
+    public long  remaining()
     {
-        if (nextPos < 0 || nextPos > buf.length)
-            return false;
-        this.pos = (int) nextPos;
-        return true;
+        return length() - position();
     }
 
 
     public boolean  skip(int count)
     {
-        return seek(pos + count);
+        return seek(position() + count);
     }
 
 
-    public int  pushPos()
+    public long  pushPos()
     {
         if (posStack == null)
-            posStack = new Stack<>();
-        posStack.push(pos);
+            posStack = new long[8];
+        else if (posDepth == posStack.length)
+            posStack = Arrays.copyOf(posStack, posDepth * 2);
+        long  pos = position();
+        posStack[posDepth++] = pos;
         return pos;
     }
 
 
-    public int  popPos()
+    public long  popPos()
     {
-        if (posStack == null || posStack.empty())
+        if (posDepth == 0)
             throw new ArrayIndexOutOfBoundsException("Read position stack is empty");
-        pos = posStack.pop();
+        long  pos = posStack[--posDepth];
+        seek(pos);
+        return pos;
+    }
+
+
+    // Check that there are at least 'count' bytes left, and move past them.
+    // Returns the position of the first of those bytes.
+    protected long  consume(int count, String errorMessage)
+    {
+        long  pos = position();
+        if (length() - pos < count)
+            throw new ArrayIndexOutOfBoundsException(errorMessage);
+        seek(pos + count);
         return pos;
     }
 
@@ -85,36 +103,37 @@ public class BytesReader
 
     public int  read(byte[] out)
     {
-        int len = Math.min(out.length, buf.length - pos);
-        System.arraycopy(buf, pos, out, 0, len);
+        int len = (int) Math.min(out.length, remaining());
+        getBytes(position(), out, 0, len);
         return len;
     }
 
 
     public byte[]  readByteArray(int length)
     {
-        if (remaining() < length)
-            throw new ArrayIndexOutOfBoundsException("Not enough data remaining in buffer");
-        if (pos == 0)
-            return Arrays.copyOf(buf, length);
-
+        long  from = consume(length, "Not enough data remaining in buffer");
         byte[] result = new byte[length];
-        if (length > 0) {
-            System.arraycopy(buf, pos, result, 0, length);
-            pos += length;
-        }
+        getBytes(from, result, 0, length);
         return result;
     }
 
 
-    public int[]  readUnsignedByteArray(int length)
+    /**
+     * Read the next 'length' bytes as a Data object. Where possible, implementations return a view
+     * of their underlying storage rather than a copy.
+     */
+    public Data  readData(int length)
     {
-        if (remaining() < length)
-            throw new ArrayIndexOutOfBoundsException("Not enough data remaining in buffer");
+        return new Data(readByteArray(length));
+    }
 
+
+    public int[]  readUnsignedByteArray(int length)
+    {
+        long  from = consume(length, "Not enough data remaining in buffer");
         int[] result = new int[length];
         for (int i=0; i < length; i++) {
-            result[i] = readUnsignedByte();
+            result[i] = getByte(from + i) & 0xff;
         }
         return result;
     }
@@ -123,27 +142,57 @@ public class BytesReader
     //------------------------------------------------------------------------------------------------------------------
 
 
+    /**
+     * Read a big-endian unsigned number of 1, 2, 4 or 8 bytes. Eight byte numbers are returned
+     * as is, so may be negative.
+     */
+    public long  readNumberBE(int byteCount)
+    {
+        return getNumberBE(consume(byteCount, "Not enough bytes left to read a number"), byteCount);
+    }
+
+
+    /**
+     * Fill 'dst' with numbers of 'byteCount' bytes each, starting at the current position.
+     * The range is checked once, rather than for every number.
+     */
+    public void  readNumbersBE(int byteCount, long[] dst)
+    {
+        long  from = position();
+        long  size = (long) byteCount * dst.length;
+        if (length() - from < size)
+            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read these numbers");
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = getNumberBE(from + (long) i * byteCount, byteCount);
+        }
+        seek(from + size);
+    }
+
+
+    static RuntimeException  illegalNumberSize(int byteCount)
+    {
+        return new RuntimeException(String.format("Request for integer of illegal size: %d bytes", byteCount));
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
     public byte readByte()
     {
-        if (remaining() == 0)
-            throw new ArrayIndexOutOfBoundsException("Not enough data remaining in buffer");
-        return buf[pos++];
+        return getByte(consume(1, "Not enough data remaining in buffer"));
     }
 
 
     public int readUnsignedByte()
     {
-        if (remaining() == 0)
-            throw new ArrayIndexOutOfBoundsException("Not enough data remaining in buffer");
-        return buf[pos++] & 0xff;   // ANDing with 0xff makes sure byte is treated as unsigned
+        return readByte() & 0xff;   // ANDing with 0xff makes sure byte is treated as unsigned
     }
 
 
     public char readChar()
     {
-        if (remaining() == 0)
-            throw new ArrayIndexOutOfBoundsException("Not enough data remaining in buffer");
-        return (char) (buf[pos++] & 0xff);
+        return (char) (readByte() & 0xff);
     }
 
 
@@ -152,37 +201,27 @@ public class BytesReader
 
     public short readShortLE()
     {
-        if (remaining() < 2)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read a short");
-        int result = buf[pos++] & 0xff;
-        return (short) (result | (buf[pos++] << 8));
+        return (short) readUnsignedShortLE();
     }
 
 
     public int readUnsignedShortLE()
     {
-        if (remaining() < 2)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read a short");
-        int result = buf[pos++] & 0xff;
-        return result | ((buf[pos++] & 0xff) << 8);  // ANDing with 0xff makes sure byte is treated as unsigned
+        long p = consume(2, "Not enough bytes left to read a short");
+        return (getByte(p) & 0xff) | ((getByte(p + 1) & 0xff) << 8);
     }
 
 
     public short readShortBE()
     {
-        if (remaining() < 2)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read a short");
-        int result = buf[pos++] << 8;
-        return (short) (result | (buf[pos++] & 0xff));
+        return (short) readUnsignedShortBE();
     }
 
 
     public int readUnsignedShortBE()
     {
-        if (remaining() < 2)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read a short");
-        int result = (buf[pos++] & 0xff) << 8;
-        return result | (buf[pos++] & 0xff);
+        long p = consume(2, "Not enough bytes left to read a short");
+        return ((getByte(p) & 0xff) << 8) | (getByte(p + 1) & 0xff);
     }
 
 
@@ -191,45 +230,33 @@ public class BytesReader
 
     public int readIntLE()
     {
-        if (remaining() < 4)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read an int");
-        int result = buf[pos++] & 0xff;
-        result |= (buf[pos++] & 0xff) << 8;
-        result |= (buf[pos++] & 0xff) << 16;
-        return result | (buf[pos++] << 24);
+        long p = consume(4, "Not enough bytes left to read an int");
+        int result = getByte(p) & 0xff;
+        result |= (getByte(p + 1) & 0xff) << 8;
+        result |= (getByte(p + 2) & 0xff) << 16;
+        return result | (getByte(p + 3) << 24);
     }
 
 
     public long readUnsignedIntLE()
     {
-        if (remaining() < 4)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read an int");
-        long result = buf[pos++] & 0xff;
-        result |= (buf[pos++] & 0xff) << 8;
-        result |= (buf[pos++] & 0xff) << 16;
-        return result | (((long) (buf[pos++] & 0xff)) << 24);
+        return readIntLE() & 0xffffffffL;
     }
 
 
     public int readIntBE()
     {
-        if (remaining() < 4)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read an int");
-        int result = buf[pos++] << 24;
-        result |= (buf[pos++] & 0xff) << 16;
-        result |= (buf[pos++] & 0xff) << 8;
-        return result | (buf[pos++] & 0xff);
+        long p = consume(4, "Not enough bytes left to read an int");
+        int result = getByte(p) << 24;
+        result |= (getByte(p + 1) & 0xff) << 16;
+        result |= (getByte(p + 2) & 0xff) << 8;
+        return result | (getByte(p + 3) & 0xff);
     }
 
 
     public long readUnsignedIntBE()
     {
-        if (remaining() < 4)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read an int");
-        long result = ((long) (buf[pos++] & 0xff)) << 24;
-        result |= (buf[pos++] & 0xff) << 16;
-        result |= (buf[pos++] & 0xff) << 8;
-        return result | (buf[pos++] & 0xff);
+        return readIntBE() & 0xffffffffL;
     }
 
 
@@ -238,31 +265,21 @@ public class BytesReader
 
     public long readLongLE()
     {
-        if (remaining() < 8)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read a long");
-        long result = (buf[pos++] & 0xff);
-        result |= ((long) (buf[pos++] & 0xff)) << 8;
-        result |= ((long) (buf[pos++] & 0xff)) << 16;
-        result |= ((long) (buf[pos++] & 0xff)) << 24;
-        result |= ((long) (buf[pos++] & 0xff)) << 32;
-        result |= ((long) (buf[pos++] & 0xff)) << 40;
-        result |= ((long) (buf[pos++] & 0xff)) << 48;
-        return result | ((long) (buf[pos++] & 0xff)) << 56;
+        long p = consume(8, "Not enough bytes left to read a long");
+        long result = 0;
+        for (int i = 7; i >= 0; i--)
+            result = (result << 8) | (getByte(p + i) & 0xff);
+        return result;
     }
 
 
     public long readLongBE()
     {
-        if (remaining() < 8)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read a long");
-        long result = ((long) (buf[pos++] &0xff)) << 56;
-        result |= ((long) (buf[pos++] & 0xff)) << 48;
-        result |= ((long) (buf[pos++] & 0xff)) << 40;
-        result |= ((long) (buf[pos++] & 0xff)) << 32;
-        result |= ((long) (buf[pos++] & 0xff)) << 24;
-        result |= ((long) (buf[pos++] & 0xff)) << 16;
-        result |= ((long) (buf[pos++] & 0xff)) << 8;
-        return result | ((long) (buf[pos++] & 0xff));
+        long p = consume(8, "Not enough bytes left to read a long");
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (getByte(p + i) & 0xff);
+        return result;
     }
 
 
@@ -298,11 +315,10 @@ public class BytesReader
 
     public String  readASCIIString(int length)
     {
-        if (remaining() < length)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read this string");
-        int from = pos;
-        pos += length;
-        return new String(buf, from, length, StandardCharsets.US_ASCII);
+        long  from = consume(length, "Not enough bytes left to read this string");
+        byte[]  bytes = new byte[length];
+        getBytes(from, bytes, 0, length);
+        return new String(bytes, StandardCharsets.US_ASCII);
     }
 
 
@@ -318,19 +334,13 @@ public class BytesReader
     }
 
 
-    private String  readUTF16(int length, Charset charSet)
+    String  readUTF16(int length, Charset charSet)
     {
         int  sz = length * 2;  // two bytes per character
-        if (remaining() < sz)
-            throw new ArrayIndexOutOfBoundsException("Not enough bytes left to read this string");
-        int from = pos;
-        pos += sz;
-        return new String(buf, from, sz, charSet);
+        long  from = consume(sz, "Not enough bytes left to read this string");
+        byte[]  bytes = new byte[sz];
+        getBytes(from, bytes, 0, sz);
+        return new String(bytes, charSet);
     }
 
-
-    //------------------------------------------------------------------------------------------------------------------
-
-
-
 }
@@ -0,0 +1,235 @@
+package com.caverock.bplist;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A BytesReader that reads from any SeekableByteChannel, such as a zip entry or a remote object.
+ *
+ * The channel is read in fixed-size pages, only when a read touches them, and the most recently
+ * used pages are kept in a small cache. Combined with lazy decoding or a path query, this lets a
+ * single value be read out of a very large plist with only a few reads of the channel.
+ *
+ * Readers created with {@link #duplicate()} share the channel and the page cache. Reads of the
+ * channel are synchronized, so duplicates can be used from different threads. I/O errors are
+ * thrown as UncheckedIOExceptions. The channel is not closed by this class.
+ */
+public class ChannelBytesReader extends BytesReader
+{
+    public static final int  DEFAULT_PAGE_SIZE = 64 * 1024;
+    public static final int  DEFAULT_CACHE_PAGES = 16;
+
+    private static final VarHandle  SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle  INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle  LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final PageCache  cache;
+    private final long       length;
+    private long             pos = 0;
+
+    // The most recently used page. Most reads are near the last one, so this saves a cache lookup.
+    private long    currentPageNum = -1;
+    private byte[]  currentPage = null;
+
+
+    public ChannelBytesReader(SeekableByteChannel channel) throws IOException
+    {
+        this(channel, DEFAULT_PAGE_SIZE, DEFAULT_CACHE_PAGES);
+    }
+
+
+    /**
+     * @param pageSize    the number of bytes read from the channel at a time. Must be a power of two.
+     * @param cachePages  the maximum number of pages kept in memory
+     */
+    public ChannelBytesReader(SeekableByteChannel channel, int pageSize, int cachePages) throws IOException
+    {
+        if (pageSize < 1 || Integer.bitCount(pageSize) != 1)
+            throw new IllegalArgumentException("pageSize must be a power of two");
+        if (cachePages < 1)
+            throw new IllegalArgumentException("cachePages must be at least 1");
+        this.length = channel.size();
+        this.cache = new PageCache(channel, length, Integer.numberOfTrailingZeros(pageSize), cachePages);
+    }
+
+
+    private ChannelBytesReader(ChannelBytesReader other)
+    {
+        this.cache = other.cache;
+        this.length = other.length;
+        this.pos = other.pos;
+    }
+
+
+    /**
+     * The number of pages that have been read from the channel so far, by this reader and its duplicates.
+     */
+    public long  getPageReads()
+    {
+        return cache.getPageReads();
+    }
+
+
+    @Override
+    public BytesReader  duplicate()
+    {
+        return new ChannelBytesReader(this);
+    }
+
+
+    @Override
+    public long  length()
+    {
+        return length;
+    }
+
+
+    @Override
+    public long  position()
+    {
+        return pos;
+    }
+
+
+    @Override
+    public boolean  seek(long nextPos)
+    {
+        if (nextPos < 0 || nextPos > length)
+            return false;
+        this.pos = nextPos;
+        return true;
+    }
+
+
+    @Override
+    protected byte  getByte(long index)
+    {
+        return page(index >>> cache.pageShift)[(int) (index & cache.pageMask)];
+    }
+
+
+    @Override
+    protected void  getBytes(long index, byte[] dst, int offset, int length)
+    {
+        while (length > 0)
+        {
+            int  pagePos = (int) (index & cache.pageMask);
+            int  n = Math.min(length, cache.pageMask + 1 - pagePos);
+            System.arraycopy(page(index >>> cache.pageShift), pagePos, dst, offset, n);
+            index += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+
+    @Override
+    protected long  getNumberBE(long index, int byteCount)
+    {
+        int  pagePos = (int) (index & cache.pageMask);
+        if (pagePos + byteCount > cache.pageMask + 1)
+            return super.getNumberBE(index, byteCount);
+        byte[]  page = page(index >>> cache.pageShift);
+        switch (byteCount)
+        {
+            case 1:  return page[pagePos] & 0xff;
+            case 2:  return (short) SHORT_BE.get(page, pagePos) & 0xffff;
+            case 4:  return (int) INT_BE.get(page, pagePos) & 0xffffffffL;
+            case 8:  return (long) LONG_BE.get(page, pagePos);
+            default: throw illegalNumberSize(byteCount);
+        }
+    }
+
+
+    private byte[]  page(long pageNum)
+    {
+        if (pageNum != currentPageNum)
+        {
+            currentPage = cache.get(pageNum);
+            currentPageNum = pageNum;
+        }
+        return currentPage;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    // The pages that have been read, least recently used first
+    private static final class PageCache
+    {
+        final int  pageShift;
+        final int  pageMask;
+
+        private final SeekableByteChannel          channel;
+        private final long                         length;
+        private final LinkedHashMap<Long, byte[]>  pages;
+        private long                               pageReads = 0;
+
+
+        PageCache(SeekableByteChannel channel, long length, int pageShift, int maxPages)
+        {
+            this.channel = channel;
+            this.length = length;
+            this.pageShift = pageShift;
+            this.pageMask = (1 << pageShift) - 1;
+            this.pages = new LinkedHashMap<>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean  removeEldestEntry(Map.Entry<Long, byte[]> eldest)
+                {
+                    return size() > maxPages;
+                }
+            };
+        }
+
+
+        synchronized byte[]  get(long pageNum)
+        {
+            byte[]  page = pages.get(pageNum);
+            if (page == null)
+            {
+                page = read(pageNum);
+                pages.put(pageNum, page);
+            }
+            return page;
+        }
+
+
+        synchronized long  getPageReads()
+        {
+            return pageReads;
+        }
+
+
+        private byte[]  read(long pageNum)
+        {
+            long  start = pageNum << pageShift;
+            ByteBuffer  buf = ByteBuffer.allocate((int) Math.min(pageMask + 1, length - start));
+            try
+            {
+                channel.position(start);
+                while (buf.hasRemaining())
+                {
+                    if (channel.read(buf) < 0)
+                        throw new EOFException("Channel ended before its reported size");
+                }
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            pageReads++;
+            return buf.array();
+        }
+    }
+
+}
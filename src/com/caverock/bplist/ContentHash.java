@@ -0,0 +1,63 @@
+package com.caverock.bplist;
+
+/**
+ * A 128 bit hash of the content of a plist, from {@link BPList#contentHash(java.nio.file.Path)}.
+ *
+ * Two plists have the same content hash if they decode to equal values, however they were encoded.
+ * The order of the objects in the file, the sizes of refs and offsets, whether equal values are
+ * shared, and the order of dict entries make no difference. Neither does whether a string is stored
+ * as ASCII or UTF-16, or whether a real is stored in 4 or 8 bytes.
+ *
+ * The hash is not cryptographic. It is for finding duplicates, not for detecting tampering.
+ */
+public final class ContentHash
+{
+    private final long  high;
+    private final long  low;
+
+
+    public ContentHash(long high, long low)
+    {
+        this.high = high;
+        this.low = low;
+    }
+
+
+    public long  getHigh()
+    {
+        return high;
+    }
+
+    public long  getLow()
+    {
+        return low;
+    }
+
+
+    @Override
+    public boolean  equals(Object o)
+    {
+        if (!(o instanceof ContentHash))
+            return false;
+        ContentHash  other = (ContentHash) o;
+        return high == other.high && low == other.low;
+    }
+
+
+    @Override
+    public int  hashCode()
+    {
+        return Long.hashCode(high ^ low);
+    }
+
+
+    /**
+     * The hash as 32 hex digits.
+     */
+    @Override
+    public String  toString()
+    {
+        return String.format("%016x%016x", high, low);
+    }
+
+}
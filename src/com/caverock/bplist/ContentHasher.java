@@ -0,0 +1,434 @@
+package com.caverock.bplist;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Computes content hashes of the objects of a bplist document, without building any arrays or dicts.
+ *
+ * Objects are hashed children first, and each object's hash is kept by object index, so an object
+ * that is referred to from many places is only hashed once. Scalars are hashed from their decoded
+ * values, so that values that decode the same hash the same. Arrays hash their elements' hashes in
+ * order. Dicts hash their entries' hashes in sorted order, so the order of the entries doesn't matter,
+ * and only the last of any repeated keys counts.
+ *
+ * The hash function is MurmurHash3's x64 128 bit mixing, applied to 64 bit words.
+ */
+final class ContentHasher
+{
+    // The state of each object
+    private static final byte  UNSEEN = 0;
+    private static final byte  IN_PROGRESS = 1;
+    private static final byte  DONE = 2;
+    private static final byte  DONE_STRING = 3;   // done, and is a string, so it can be a dict key
+
+    // Type tags, so that values of different types that happen to have the same bits hash differently
+    private static final long  NULL = 0;
+    private static final long  BOOLEAN = 1;
+    private static final long  INTEGER = 2;
+    private static final long  BIG_INTEGER = 3;
+    private static final long  REAL = 4;
+    private static final long  DATE = 5;
+    private static final long  DATA = 6;
+    private static final long  STRING = 7;
+    private static final long  UID = 8;
+    private static final long  ARRAY = 9;
+    private static final long  DICT = 10;
+    private static final long  DICT_ENTRY = 11;
+
+    private final Decoder  decoder;
+    private final long[]   hashes;   // high and low words of each object's hash
+    private final byte[]   state;
+
+    // The arrays and dicts being hashed
+    private int[]    stackObject = new int[16];
+    private int[][]  stackRefs = new int[16][];
+    private int[]    stackNext = new int[16];
+    private int      stackSize = 0;
+
+
+    ContentHasher(Decoder decoder)
+    {
+        this.decoder = decoder;
+        this.hashes = new long[decoder.numObjects * 2];
+        this.state = new byte[decoder.numObjects];
+    }
+
+
+    ContentHash  hash()
+    {
+        return hash(decoder.topObject);
+    }
+
+
+    ContentHash  hash(int objectIndex)
+    {
+        if (state[objectIndex] < DONE)
+            hashTree(objectIndex);
+        return new ContentHash(hashes[objectIndex * 2], hashes[objectIndex * 2 + 1]);
+    }
+
+
+    private boolean  sameHash(int objectIndex, ContentHasher other, int otherIndex)
+    {
+        return hash(objectIndex).equals(other.hash(otherIndex));
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    // Hash an object and everything below it that hasn't been hashed yet
+    private void  hashTree(int root)
+    {
+        visit(root);
+        while (stackSize > 0)
+        {
+            int    top = stackSize - 1;
+            int[]  refs = stackRefs[top];
+            int    i = stackNext[top];
+            if (i < refs.length)
+            {
+                stackNext[top] = i + 1;
+                int  ref = refs[i];
+                if (state[ref] == IN_PROGRESS)
+                    throw new RuntimeException("Reference cycle: object " + ref + " contains itself");
+                if (state[ref] == UNSEEN)
+                    visit(ref);
+            }
+            else
+            {
+                hashContainer(stackObject[top], refs);
+                stackRefs[top] = null;
+                stackSize--;
+            }
+        }
+    }
+
+
+    // Hash a scalar, or push an array or dict to have its children hashed first
+    private void  visit(int objectIndex)
+    {
+        int  type = decoder.markerType(objectIndex);
+        if (type != 10 && type != 12 && type != 13)
+        {
+            hashScalar(objectIndex);
+            return;
+        }
+
+        int[]  refs = decoder.containerRefs(objectIndex);
+        for (int ref: refs)
+        {
+            if (ref < 0 || ref >= state.length)
+                throw new RuntimeException("Bad object ref " + ref + " in object " + objectIndex);
+        }
+        if (stackSize == stackObject.length)
+        {
+            stackObject = Arrays.copyOf(stackObject, stackSize * 2);
+            stackRefs = Arrays.copyOf(stackRefs, stackSize * 2);
+            stackNext = Arrays.copyOf(stackNext, stackSize * 2);
+        }
+        stackObject[stackSize] = objectIndex;
+        stackRefs[stackSize] = refs;
+        stackNext[stackSize] = 0;
+        stackSize++;
+        state[objectIndex] = IN_PROGRESS;
+    }
+
+
+    private void  hashScalar(int objectIndex)
+    {
+        Object  value = decoder.getObject(objectIndex);
+        Hash128  h = new Hash128();
+        if (value == null)
+            h.add(NULL);
+        else if (value instanceof Boolean)
+            h.add(BOOLEAN).add((Boolean) value ? 1 : 0);
+        else if (value instanceof Long)
+            h.add(INTEGER).add((Long) value);
+        else if (value instanceof BigInteger)
+        {
+            BigInteger  big = (BigInteger) value;
+            if (big.bitLength() < 64)
+                h.add(INTEGER).add(big.longValue());
+            else
+                h.add(BIG_INTEGER).add(big.shiftRight(64).longValue()).add(big.longValue());
+        }
+        else if (value instanceof Float || value instanceof Double)
+            h.add(REAL).add(Double.doubleToLongBits(((Number) value).doubleValue()));
+        else if (value instanceof Instant)
+            h.add(DATE).add(((Instant) value).getEpochSecond()).add(((Instant) value).getNano());
+        else if (value instanceof Data)
+        {
+            ByteBuffer  buf = ((Data) value).getBuffer().order(ByteOrder.BIG_ENDIAN);
+            h.add(DATA).add(buf.remaining());
+            while (buf.remaining() >= 8) {
+                h.add(buf.getLong());
+            }
+            long  last = 0;
+            while (buf.hasRemaining()) {
+                last = (last << 8) | (buf.get() & 0xff);
+            }
+            h.add(last);
+        }
+        else if (value instanceof String)
+        {
+            // By UTF-16 code unit, which is how both ASCII and UTF-16 strings decode
+            String  str = (String) value;
+            h.add(STRING).add(str.length());
+            long  word = 0;
+            for (int i = 0; i < str.length(); i++)
+            {
+                word = (word << 16) | str.charAt(i);
+                if ((i & 3) == 3) {
+                    h.add(word);
+                    word = 0;
+                }
+            }
+            h.add(word);
+        }
+        else if (value instanceof Uid)
+            h.add(UID).add(((Uid) value).getUid());
+        else
+            throw new RuntimeException("Unexpected object type: " + value.getClass().getName());
+
+        h.finish(hashes, objectIndex);
+        state[objectIndex] = (value instanceof String) ? DONE_STRING : DONE;
+    }
+
+
+    // All the container's children have been hashed
+    private void  hashContainer(int objectIndex, int[] refs)
+    {
+        Hash128  h = new Hash128();
+        if (decoder.markerType(objectIndex) != 13)
+        {
+            // Sets decode to arrays, so they hash like arrays
+            h.add(ARRAY).add(refs.length);
+            for (int ref: refs) {
+                h.add(hashes[ref * 2]).add(hashes[ref * 2 + 1]);
+            }
+        }
+        else
+        {
+            // A repeated key keeps only its last value, as it does when decoding.
+            // So the entries are taken from last to first, skipping keys that have been seen already.
+            int     count = refs.length / 2;
+            long[]  entries = new long[count * 2];
+            Set<ContentHash>  seen = (count > 1) ? new HashSet<>(count * 2) : null;
+            int     unique = 0;
+            for (int i = count - 1; i >= 0; i--)
+            {
+                int  kRef = refs[i];
+                int  vRef = refs[count + i];
+                if (state[kRef] != DONE_STRING)
+                    throw new RuntimeException("Invalid dict key. Expected string.");
+                if (seen != null && !seen.add(new ContentHash(hashes[kRef * 2], hashes[kRef * 2 + 1])))
+                    continue;
+                new Hash128().add(DICT_ENTRY)
+                             .add(hashes[kRef * 2]).add(hashes[kRef * 2 + 1])
+                             .add(hashes[vRef * 2]).add(hashes[vRef * 2 + 1])
+                             .finish(entries, unique++);
+            }
+            if (unique < count)
+                entries = Arrays.copyOf(entries, unique * 2);
+            sortPairs(entries);
+            h.add(DICT).add(unique);
+            for (long word: entries) {
+                h.add(word);
+            }
+        }
+        h.finish(hashes, objectIndex);
+        state[objectIndex] = DONE;
+    }
+
+
+    // Sort the 128 bit values stored as pairs of longs, so that dict entries hash in a fixed order
+    private static void  sortPairs(long[] pairs)
+    {
+        int  count = pairs.length / 2;
+        if (count < 2)
+            return;
+        Integer[]  order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int  c = Long.compare(pairs[a * 2], pairs[b * 2]);
+            return (c != 0) ? c : Long.compare(pairs[a * 2 + 1], pairs[b * 2 + 1]);
+        });
+        long[]  copy = pairs.clone();
+        for (int i = 0; i < count; i++)
+        {
+            pairs[i * 2] = copy[order[i] * 2];
+            pairs[i * 2 + 1] = copy[order[i] * 2 + 1];
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Diffs
+
+
+    // Add the paths of the values that are different in the two documents to 'diffs'.
+    // Subtrees whose hashes match are skipped without being looked at.
+    static void  diff(ContentHasher a, ContentHasher b, List<String> diffs)
+    {
+        diff(a, a.decoder.topObject, b, b.decoder.topObject, "", 0, diffs);
+    }
+
+
+    private static void  diff(ContentHasher a, int aIndex, ContentHasher b, int bIndex, String path, int depth, List<String> diffs)
+    {
+        if (a.sameHash(aIndex, b, bIndex))
+            return;
+        if (depth == a.decoder.options.getMaxDepth())
+            throw new RuntimeException("Objects are nested too deeply. The limit is " + a.decoder.options.getMaxDepth() + " levels.");
+
+        int  aType = containerType(a.decoder.markerType(aIndex));
+        int  bType = containerType(b.decoder.markerType(bIndex));
+        if (aType != bType || aType == 0)
+        {
+            diffs.add(path);
+            return;
+        }
+
+        int[]  aRefs = a.decoder.containerRefs(aIndex);
+        int[]  bRefs = b.decoder.containerRefs(bIndex);
+        if (aType == 10)
+        {
+            int  common = Math.min(aRefs.length, bRefs.length);
+            for (int i = 0; i < common; i++) {
+                diff(a, aRefs[i], b, bRefs[i], path + "[" + i + "]", depth + 1, diffs);
+            }
+            // Elements added to, or removed from, the end
+            for (int i = common; i < Math.max(aRefs.length, bRefs.length); i++) {
+                diffs.add(path + "[" + i + "]");
+            }
+            return;
+        }
+
+        Map<String,Integer>  aEntries = entries(a.decoder, aRefs);
+        Map<String,Integer>  bEntries = entries(b.decoder, bRefs);
+        for (Map.Entry<String,Integer> entry: aEntries.entrySet())
+        {
+            String   keyPath = childPath(path, entry.getKey());
+            Integer  bValue = bEntries.get(entry.getKey());
+            if (bValue == null)
+                diffs.add(keyPath);
+            else
+                diff(a, entry.getValue(), b, bValue, keyPath, depth + 1, diffs);
+        }
+        for (String key: bEntries.keySet())
+        {
+            if (!aEntries.containsKey(key))
+                diffs.add(childPath(path, key));
+        }
+    }
+
+
+    // 10 for arrays and sets, 13 for dicts, 0 for anything else
+    private static int  containerType(int markerType)
+    {
+        if (markerType == 10 || markerType == 12)
+            return 10;
+        return (markerType == 13) ? 13 : 0;
+    }
+
+
+    // The value refs of a dict, by key, in document order. As when decoding, a repeated key takes the last value.
+    private static Map<String,Integer>  entries(Decoder decoder, int[] refs)
+    {
+        int  count = refs.length / 2;
+        Map<String,Integer>  entries = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            entries.put(decoder.readKey(refs[i]), refs[count + i]);
+        }
+        return entries;
+    }
+
+
+    // The path to a dict entry, in PlistPath syntax
+    private static String  childPath(String path, String key)
+    {
+        StringBuilder  sb = new StringBuilder(path);
+        if (!path.isEmpty())
+            sb.append('.');
+        for (int i = 0; i < key.length(); i++)
+        {
+            char  ch = key.charAt(i);
+            if (ch == '.' || ch == '[' || ch == '\\')
+                sb.append('\\');
+            sb.append(ch);
+        }
+        return sb.toString();
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    // MurmurHash3 x64 128 bit, fed a 64 bit word at a time into both halves of the state
+    private static final class Hash128
+    {
+        private static final long  C1 = 0x87c37b91114253d5L;
+        private static final long  C2 = 0x4cf5ad432745937fL;
+
+        private long  h1 = 0;
+        private long  h2 = 0;
+        private int   words = 0;
+
+
+        Hash128  add(long k)
+        {
+            long  k1 = Long.rotateLeft(k * C1, 31) * C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            long  k2 = Long.rotateLeft(k * C2, 33) * C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+
+            words++;
+            return this;
+        }
+
+
+        // Store the hash in out[index * 2] and out[index * 2 + 1]
+        void  finish(long[] out, int index)
+        {
+            long  a = h1 ^ words;
+            long  b = h2 ^ words;
+            a += b;
+            b += a;
+            a = fmix(a);
+            b = fmix(b);
+            a += b;
+            b += a;
+            out[index * 2] = a;
+            out[index * 2 + 1] = b;
+        }
+
+
+        private static long  fmix(long k)
+        {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.caverock.bplist;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A bplist data object.
+ *
+ * Wraps a read-only view of the bytes. When decoded from a file, this is normally a slice of
+ * the file buffer itself, so no copy of the data is made.
+ *
+ * A Data is serialized as a copy of its bytes.
+ */
+public class Data implements Serializable
+{
+    private static final long  serialVersionUID = 1L;
+
+    private final transient ByteBuffer  buffer;
+
+
+    // What a Data is written as, since a ByteBuffer can't be serialized
+    private static final class SerialForm implements Serializable
+    {
+        private static final long  serialVersionUID = 1L;
+
+        private final byte[]  bytes;
+
+        SerialForm(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        private Object  readResolve()
+        {
+            return new Data(bytes);
+        }
+    }
+
+
+    public Data(byte[] bytes)
+    {
+        if (bytes == null)
+            throw new NullPointerException("bytes is null");
+        this.buffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Wraps the remaining bytes of the given buffer. The bytes are not copied.
+     */
+    public Data(ByteBuffer buffer)
+    {
+        if (buffer == null)
+            throw new NullPointerException("buffer is null");
+        this.buffer = buffer.slice().asReadOnlyBuffer();
+    }
+
+
+    public int  length()
+    {
+        return buffer.remaining();
+    }
+
+
+    /**
+     * Returns a read-only view of the data. Each call returns a new view with its own position.
+     */
+    public ByteBuffer  getBuffer()
+    {
+        return buffer.duplicate();
+    }
+
+
+    /**
+     * Returns a copy of the data.
+     */
+    public byte[]  getBytes()
+    {
+        byte[]  bytes = new byte[buffer.remaining()];
+        buffer.get(0, bytes);
+        return bytes;
+    }
+
+
+    /**
+     * Returns the data as an array of unsigned byte values. This is the form that data
+     * objects used to be decoded to.
+     */
+    public int[]  toUnsignedIntArray()
+    {
+        int[]  result = new int[buffer.remaining()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = buffer.get(i) & 0xff;
+        }
+        return result;
+    }
+
+
+    public String  toBase64()
+    {
+        return new String(Base64.getEncoder().encode(buffer.duplicate()).array(), StandardCharsets.US_ASCII);
+    }
+
+
+    @Override
+    public boolean  equals(Object o)
+    {
+        return (o instanceof Data) && buffer.equals(((Data) o).buffer);
+    }
+
+
+    @Override
+    public int  hashCode()
+    {
+        return buffer.hashCode();
+    }
+
+
+    @Override
+    public String  toString()
+    {
+        return "Data[" + length() + " bytes]";
+    }
+
+
+    private Object  writeReplace()
+    {
+        return new SerialForm(getBytes());
+    }
+
+
+    private void  readObject(ObjectInputStream in) throws InvalidObjectException
+    {
+        throw new InvalidObjectException("Data is read through SerialForm");
+    }
+}
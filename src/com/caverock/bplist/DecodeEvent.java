@@ -0,0 +1,62 @@
+package com.caverock.bplist;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * The JFR event recorded for each decode, when a recording has it enabled.
+ * The event's duration covers the whole decode, including reading the file.
+ */
+@Name("com.caverock.bplist.Decode")
+@Label("BPList Decode")
+@Category("BPList")
+@Description("Decoding of a bplist document")
+@StackTrace(false)
+class DecodeEvent extends Event
+{
+    @Label("Length")
+    @DataAmount
+    long  length;
+
+    @Label("Objects")
+    @Description("Number of objects in the offset table")
+    long  objectCount;
+
+    @Label("Objects Decoded")
+    long  objectsDecoded;
+
+    @Label("String Bytes")
+    @DataAmount
+    long  stringBytes;
+
+    @Label("Data Bytes")
+    @DataAmount
+    long  dataBytes;
+
+    @Label("Max Depth")
+    int  maxDepth;
+
+    @Label("Memo Hits")
+    long  memoHits;
+
+    @Label("Read Time")
+    @Timespan
+    long  readTime;
+
+    @Label("Trailer Time")
+    @Timespan
+    long  trailerTime;
+
+    @Label("Object Decode Time")
+    @Timespan
+    long  decodeTime;
+
+    @Label("Error")
+    String  error;
+}
@@ -0,0 +1,14 @@
+package com.caverock.bplist;
+
+/**
+ * Receives timings and counters for each decode. See {@link DecodeOptions#setListener(DecodeListener)}.
+ */
+@FunctionalInterface
+public interface DecodeListener
+{
+    /**
+     * Called once at the end of each decode, whether or not it succeeded.
+     * Called on the thread that called decode().
+     */
+    void  decodeFinished(DecodeStats stats);
+}
@@ -0,0 +1,283 @@
+package com.caverock.bplist;
+
+/**
+ * Options controlling how a bplist is decoded.
+ *
+ * The defaults match the behaviour of {@link BPList#decode(java.io.File)}.
+ */
+public class DecodeOptions
+{
+    private boolean  memoizeObjects = false;
+    private boolean  lazy = false;
+    private long     memoryMapThreshold = Long.MAX_VALUE;
+    private int      channelPageSize = ChannelBytesReader.DEFAULT_PAGE_SIZE;
+    private int      channelCachePages = ChannelBytesReader.DEFAULT_CACHE_PAGES;
+    private boolean  parallel = false;
+    private int      parallelThreshold = 4096;
+    private KeyPool  keyPool = null;
+    private int      maxDepth = 1024;
+    private long     maxObjects = Long.MAX_VALUE;
+    private long     maxBytes = Long.MAX_VALUE;
+    private boolean  primitiveArrays = false;
+    private DecodeListener  listener = null;
+
+
+    public DecodeOptions()
+    {
+    }
+
+
+    /**
+     * If set, every entry in the object table is decoded at most once per document.
+     * Objects that are referenced from more than one place (e.g. common dictionary keys, which
+     * Apple's writer deduplicates) will be returned as the same instance everywhere they appear.
+     *
+     * Note that this also applies to shared arrays and dictionaries. Callers should therefore
+     * treat the decoded tree as read-only when this option is enabled.
+     */
+    public DecodeOptions  setMemoizeObjects(boolean memoizeObjects)
+    {
+        this.memoizeObjects = memoizeObjects;
+        return this;
+    }
+
+    public boolean  isMemoizeObjects()
+    {
+        return memoizeObjects;
+    }
+
+
+    /**
+     * If set, dictionary values are not decoded until they are first accessed with
+     * {@code get()}, {@code getDict()}, {@code getString()} etc.  Keys are still decoded
+     * up front.
+     *
+     * The returned dictionaries keep a reference to the file contents until all their values
+     * have been decoded. They must not be accessed from more than one thread at a time.
+     * Replacing a value that hasn't been decoded yet with {@code put()} returns null instead of the
+     * old value.
+     */
+    public DecodeOptions  setLazy(boolean lazy)
+    {
+        this.lazy = lazy;
+        return this;
+    }
+
+    public boolean  isLazy()
+    {
+        return lazy;
+    }
+
+
+    /**
+     * Files of at least this many bytes are memory-mapped, rather than being read into
+     * a byte array on the heap. Files bigger than 2GB are always mapped. The default is
+     * to map only those.
+     *
+     * Data objects decoded from a mapped file share its memory, so the file stays mapped for as
+     * long as any of them can be reached. On Windows, the file can't be deleted or replaced until
+     * then. If another process truncates the file, reading the data fails with an InternalError.
+     * A threshold of around 32MB suits files that are only read, and are kept while the results
+     * are in use.
+     */
+    public DecodeOptions  setMemoryMapThreshold(long memoryMapThreshold)
+    {
+        this.memoryMapThreshold = memoryMapThreshold;
+        return this;
+    }
+
+    public long  getMemoryMapThreshold()
+    {
+        return memoryMapThreshold;
+    }
+
+
+    /**
+     * The number of bytes read at a time when decoding from a SeekableByteChannel.
+     * Must be a power of two. The default is 64KB.
+     */
+    public DecodeOptions  setChannelPageSize(int channelPageSize)
+    {
+        if (channelPageSize < 1 || Integer.bitCount(channelPageSize) != 1)
+            throw new IllegalArgumentException("channelPageSize must be a power of two");
+        this.channelPageSize = channelPageSize;
+        return this;
+    }
+
+    public int  getChannelPageSize()
+    {
+        return channelPageSize;
+    }
+
+
+    /**
+     * The maximum number of pages kept in memory when decoding from a SeekableByteChannel.
+     * The default is 16.
+     */
+    public DecodeOptions  setChannelCachePages(int channelCachePages)
+    {
+        if (channelCachePages < 1)
+            throw new IllegalArgumentException("channelCachePages must be at least 1");
+        this.channelCachePages = channelCachePages;
+        return this;
+    }
+
+    public int  getChannelCachePages()
+    {
+        return channelCachePages;
+    }
+
+
+    /**
+     * If set, the elements of large arrays and dicts are decoded in parallel, using the common
+     * ForkJoinPool. Collections smaller than the parallel threshold are still decoded sequentially.
+     *
+     * This option is ignored for lazy decoding.
+     */
+    public DecodeOptions  setParallel(boolean parallel)
+    {
+        this.parallel = parallel;
+        return this;
+    }
+
+    public boolean  isParallel()
+    {
+        return parallel;
+    }
+
+
+    /**
+     * The number of elements an array or dict must have before it is split up for parallel
+     * decoding. This is also the size of the smallest piece of work that is handed to a thread.
+     * The default is 4096.
+     */
+    public DecodeOptions  setParallelThreshold(int parallelThreshold)
+    {
+        if (parallelThreshold < 1)
+            throw new IllegalArgumentException("parallelThreshold must be at least 1");
+        this.parallelThreshold = parallelThreshold;
+        return this;
+    }
+
+    public int  getParallelThreshold()
+    {
+        return parallelThreshold;
+    }
+
+
+    /**
+     * If set, dictionary keys are looked up in, and added to, this pool. The same pool can be
+     * used for any number of decodes, including ones running at the same time on different threads.
+     *
+     * This saves memory when many decoded plists with the same keys are kept around.
+     */
+    public DecodeOptions  setKeyPool(KeyPool keyPool)
+    {
+        this.keyPool = keyPool;
+        return this;
+    }
+
+    public KeyPool  getKeyPool()
+    {
+        return keyPool;
+    }
+
+
+    /**
+     * The maximum number of levels of nested arrays and dicts. Decoding fails if the
+     * file is nested more deeply than this. An array or dict that contains itself, directly or
+     * indirectly, is reported as a reference cycle when this limit is reached. The default is 1024.
+     */
+    public DecodeOptions  setMaxDepth(int maxDepth)
+    {
+        if (maxDepth < 1)
+            throw new IllegalArgumentException("maxDepth must be at least 1");
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    public int  getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+
+    /**
+     * The maximum number of objects that may be decoded. Decoding fails if there would be more.
+     *
+     * Without memoizeObjects, an object that is referred to from more than one place is decoded
+     * each time, so a small file that refers to the same large array many times can decode to
+     * a huge tree. Set this, and maxBytes, when decoding files from untrusted sources.
+     * With lazy decoding, values decoded later also count. The default is no limit.
+     */
+    public DecodeOptions  setMaxObjects(long maxObjects)
+    {
+        if (maxObjects < 1)
+            throw new IllegalArgumentException("maxObjects must be at least 1");
+        this.maxObjects = maxObjects;
+        return this;
+    }
+
+    public long  getMaxObjects()
+    {
+        return maxObjects;
+    }
+
+
+    /**
+     * The maximum total size, in bytes, of the strings and data that may be decoded. Decoding fails
+     * if there would be more. See {@link #setMaxObjects(long)}. The default is no limit.
+     */
+    public DecodeOptions  setMaxBytes(long maxBytes)
+    {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public long  getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+
+    /**
+     * If set, arrays whose elements are all integers are returned as a {@code long[]}, and arrays
+     * whose elements are all reals are returned as a {@code double[]}, instead of an {@code Object[]}
+     * of boxed values. Arrays of floats are widened to doubles. Empty arrays, and arrays of any
+     * other mix of elements, are still returned as {@code Object[]}.
+     *
+     * See {@link Dict#getLongArray(String)} and {@link Dict#getDoubleArray(String)}.
+     */
+    public DecodeOptions  setPrimitiveArrays(boolean primitiveArrays)
+    {
+        this.primitiveArrays = primitiveArrays;
+        return this;
+    }
+
+    public boolean  isPrimitiveArrays()
+    {
+        return primitiveArrays;
+    }
+
+
+    /**
+     * If set, the listener is given the timings and counters for each decode. Without a listener,
+     * these are not collected, unless a JFR recording has the {@code com.caverock.bplist.Decode}
+     * event enabled.
+     *
+     * Only {@link BPList#decode(java.io.File)} and its variants report to the listener.
+     */
+    public DecodeOptions  setListener(DecodeListener listener)
+    {
+        this.listener = listener;
+        return this;
+    }
+
+    public DecodeListener  getListener()
+    {
+        return listener;
+    }
+
+}
@@ -0,0 +1,282 @@
+package com.caverock.bplist;
+
+/**
+ * Timings and counters for one decode, passed to a {@link DecodeListener}.
+ *
+ * Times are in nanoseconds. The phases are: reading the file (or stream) into memory, checking the
+ * header and trailer, and decoding the objects. Offsets are read from the offset table as objects are
+ * looked up, so that is part of decoding. With lazy decoding, only the objects decoded before decode()
+ * returns are counted.
+ */
+public final class DecodeStats
+{
+    private final DecodeListener  listener;
+    private final DecodeEvent     event;     // null if JFR isn't recording decodes
+
+    private long  phaseStart;
+    private long  readNanos;
+    private long  trailerNanos;
+    private long  decodeNanos;
+
+    private long     length;
+    private long     objectCount;
+    private final long[]  objectsByType = new long[16];
+    private long     stringBytes;
+    private long     dataBytes;
+    private int      maxDepth;
+    private long     memoHits;
+    private String   error;
+    private boolean  finished = false;
+
+
+    private DecodeStats(DecodeListener listener, DecodeEvent event)
+    {
+        this.listener = listener;
+        this.event = event;
+        this.phaseStart = System.nanoTime();
+    }
+
+
+    // Returns null if there is no listener, and JFR isn't recording decode events,
+    // so that the decoder can skip all its counting with a null check.
+    static DecodeStats  start(DecodeOptions options)
+    {
+        DecodeEvent  event = new DecodeEvent();
+        if (!event.isEnabled())
+        {
+            if (options.getListener() == null)
+                return null;
+            event = null;
+        }
+        else
+            event.begin();
+        return new DecodeStats(options.getListener(), event);
+    }
+
+
+    // A separate set of counters for a thread decoding part of the document in parallel.
+    // Merged back in with merge() when the thread has finished.
+    DecodeStats  fork()
+    {
+        return new DecodeStats(null, null);
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Recording, for BPList and Decoder
+
+
+    // Returns the time since the end of the last phase
+    private long  endPhase()
+    {
+        long  now = System.nanoTime();
+        long  elapsed = now - phaseStart;
+        phaseStart = now;
+        return elapsed;
+    }
+
+    void  endRead(long length)
+    {
+        this.readNanos = endPhase();
+        this.length = length;
+    }
+
+    void  endTrailer(long objectCount)
+    {
+        this.trailerNanos = endPhase();
+        this.objectCount = objectCount;
+    }
+
+    void  endDecode()
+    {
+        this.decodeNanos = endPhase();
+    }
+
+
+    // An object is being decoded
+    void  object(int markerType)
+    {
+        if (!finished)
+            objectsByType[markerType]++;
+    }
+
+    // The size of a string or data object
+    void  bytes(int markerType, long bytes)
+    {
+        if (finished)
+            return;
+        if (markerType == 4)
+            dataBytes += bytes;
+        else
+            stringBytes += bytes;
+    }
+
+    void  memoHit()
+    {
+        if (!finished)
+            memoHits++;
+    }
+
+    void  depth(int depth)
+    {
+        if (depth > maxDepth && !finished)
+            maxDepth = depth;
+    }
+
+
+    synchronized void  merge(DecodeStats other)
+    {
+        for (int i = 0; i < objectsByType.length; i++) {
+            objectsByType[i] += other.objectsByType[i];
+        }
+        stringBytes += other.stringBytes;
+        dataBytes += other.dataBytes;
+        memoHits += other.memoHits;
+        maxDepth = Math.max(maxDepth, other.maxDepth);
+    }
+
+
+    // Report the decode to the listener and to JFR
+    void  finish(String error)
+    {
+        this.error = error;
+        this.finished = true;
+        if (event != null)
+        {
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.length = length;
+                event.objectCount = objectCount;
+                event.objectsDecoded = getObjectsDecoded();
+                event.stringBytes = stringBytes;
+                event.dataBytes = dataBytes;
+                event.maxDepth = maxDepth;
+                event.memoHits = memoHits;
+                event.readTime = readNanos;
+                event.trailerTime = trailerNanos;
+                event.decodeTime = decodeNanos;
+                event.error = error;
+                event.commit();
+            }
+        }
+        if (listener != null)
+            listener.decodeFinished(this);
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    public boolean  isSuccess()
+    {
+        return error == null;
+    }
+
+    /**
+     * The error message of a failed decode, or null.
+     */
+    public String  getError()
+    {
+        return error;
+    }
+
+    public long  getReadNanos()
+    {
+        return readNanos;
+    }
+
+    public long  getTrailerNanos()
+    {
+        return trailerNanos;
+    }
+
+    public long  getDecodeNanos()
+    {
+        return decodeNanos;
+    }
+
+    public long  getTotalNanos()
+    {
+        return readNanos + trailerNanos + decodeNanos;
+    }
+
+    /**
+     * The length of the document in bytes.
+     */
+    public long  getLength()
+    {
+        return length;
+    }
+
+    /**
+     * The number of objects in the document's offset table.
+     */
+    public long  getObjectCount()
+    {
+        return objectCount;
+    }
+
+    /**
+     * The number of objects decoded. Objects that are referred to more than once are
+     * counted each time they are decoded, so this can be more than the object count.
+     */
+    public long  getObjectsDecoded()
+    {
+        long  total = 0;
+        for (long count: objectsByType) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * The number of objects decoded with this marker type (the top four bits of the marker byte):
+     * 0 null and booleans, 1 integer, 2 real, 3 date, 4 data, 5 ASCII string, 6 UTF-16 string,
+     * 8 uid, 10 array, 12 set, 13 dict.
+     */
+    public long  getObjectsDecoded(int markerType)
+    {
+        return objectsByType[markerType];
+    }
+
+    /**
+     * The number of bytes of string objects decoded, including dict keys.
+     */
+    public long  getStringBytes()
+    {
+        return stringBytes;
+    }
+
+    public long  getDataBytes()
+    {
+        return dataBytes;
+    }
+
+    /**
+     * The deepest level of nested arrays and dicts decoded, counting the root.
+     */
+    public int  getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * The number of objects that were reused, rather than decoded again, because of the
+     * memoizeObjects option.
+     */
+    public long  getMemoHits()
+    {
+        return memoHits;
+    }
+
+
+    @Override
+    public String  toString()
+    {
+        return String.format("%s: %d bytes, %d objects, %d decoded, depth %d, read %dus, trailer %dus, decode %dus",
+                             isSuccess() ? "OK" : "Failed", length, objectCount, getObjectsDecoded(), maxDepth,
+                             readNanos / 1000, trailerNanos / 1000, decodeNanos / 1000);
+    }
+
+}
@@ -0,0 +1,859 @@
+package com.caverock.bplist;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Decodes the objects of a single bplist document.
+ * Holds the per-document state (reader, offset table, ref size and options) that the
+ * object parsing methods would otherwise have to pass around to each other.
+ */
+class Decoder
+{
+    // Apple date epoch.  Worked out using the following code:
+    //Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+    //cal.set(2001, Calendar.JANUARY, 1, 0, 0, 0);
+    //cal.clear(Calendar.MILLISECOND);
+    //cal.getTimeInMillis();
+    static final long  APPLE_DATE_EPOCH = 978307200000L;
+
+    final BytesReader    in;
+    final int            numObjects;
+    final int            objectRefByteCount;
+    final int            topObject;
+    final DecodeOptions  options;
+
+    // The offset table is not copied out of the document. Offsets are read from it as they are needed.
+    private final long  offsetTableStart;
+    private final int   offsetByteCount;
+
+    // Counters for a DecodeListener or JFR. Null if nobody is listening.
+    final DecodeStats  stats;
+    // The nesting level of this decoder's first object, for decoders working on part of the document
+    private final int  baseDepth;
+
+    // What has been decoded so far, for the maxObjects and maxBytes options.
+    // Shared by all the decoders working on a document. Null if there are no limits.
+    private final Budget  budget;
+
+    // Decoded objects by object index. Only allocated if memoizing.
+    // Shared between threads when decoding in parallel, so it is accessed with acquire/release semantics.
+    private final Object[]  memo;
+
+    private static final VarHandle  MEMO = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private final boolean  parallel;
+    private final KeyPool  keyPool;
+
+    // Returned by decodeObject() when it has pushed an array or dict onto the stack, rather than decoding it
+    private static final Object  OPEN = new Object();
+
+    // The stack of arrays and dicts that are part way through being decoded (or walked), one level
+    // per entry. Arrays and dicts are decoded in a loop over this stack, rather than by recursion,
+    // so that deep nesting is limited by the maxDepth option rather than by the thread's stack size.
+    private int       depth = 0;
+    private int[]     stackObject;      // object index
+    private int[]     stackType;        // marker type: ARRAY or DICT
+    private int[]     stackCount;       // number of elements
+    private int[]     stackNext;        // index of the next element to decode
+    private long[]    stackRefs;        // position of the first ref. For dicts, the key refs.
+    private Object[]  stackContainer;   // the Object[] or Dict being filled in
+    private String[]  stackKey;         // for dicts, the key of the element being decoded
+
+    private static final int  ARRAY = 10;
+    private static final int  DICT = 13;
+
+    private static final int  MAX_PARALLEL_DEPTH = 8;
+
+
+    // The trailer must have been checked by BPList.readTrailer()
+    Decoder(BytesReader in, BPList.Trailer trailer, DecodeOptions options, DecodeStats stats)
+    {
+        this.in = in;
+        this.numObjects = (int) trailer.numObjects;
+        this.objectRefByteCount = trailer.objectRefByteCount;
+        this.topObject = (int) trailer.topObject;
+        this.options = options;
+        this.offsetTableStart = trailer.offsetTableStart;
+        this.offsetByteCount = trailer.offsetTableByteCount;
+        this.memo = options.isMemoizeObjects() ? new Object[numObjects] : null;
+        this.parallel = options.isParallel() && !options.isLazy();
+        this.keyPool = options.getKeyPool();
+        this.stats = stats;
+        this.baseDepth = 0;
+        boolean  limited = options.getMaxObjects() != Long.MAX_VALUE || options.getMaxBytes() != Long.MAX_VALUE;
+        this.budget = limited ? new Budget() : null;
+    }
+
+
+    // A decoder for the same document, with its own read cursor.
+    // Used to decode parts of the document on other threads.
+    private Decoder(Decoder parent)
+    {
+        this.in = parent.in.duplicate();
+        this.numObjects = parent.numObjects;
+        this.offsetTableStart = parent.offsetTableStart;
+        this.offsetByteCount = parent.offsetByteCount;
+        this.objectRefByteCount = parent.objectRefByteCount;
+        this.topObject = parent.topObject;
+        this.options = parent.options;
+        this.memo = parent.memo;
+        this.parallel = parent.parallel;
+        this.keyPool = parent.keyPool;
+        // Each thread counts separately. The counts are merged when it has finished.
+        this.stats = (parent.stats != null) ? parent.stats.fork() : null;
+        this.baseDepth = parent.baseDepth + parent.depth + 1;
+        this.budget = parent.budget;
+    }
+
+
+    // Read a offset or object table value of size 1..N bytes
+    // We have already checked that N <= 8.
+    static long readNByteNumber(BytesReader in, int byteCount)
+    {
+        return in.readNumberBE(byteCount);
+    }
+
+
+    // Read an object's entry in the offset table
+    long  offset(int objectIndex)
+    {
+        if (objectIndex < 0 || objectIndex >= numObjects)
+            throw new RuntimeException("Invalid object ref: " + objectIndex);
+        long  offset = in.getNumberBE(offsetTableStart + (long) objectIndex * offsetByteCount, offsetByteCount);
+        // Objects are between the header and the offset table. Checking this also means seek() can't fail.
+        if (offset < BPList.HEADER_SIZE || offset >= offsetTableStart)
+            throw new RuntimeException("Bad offset for object " + objectIndex + ": " + offset);
+        return offset;
+    }
+
+
+    Object  getObject(int objectIndex)
+    {
+        Object  obj = startObject(objectIndex);
+        return (obj == OPEN) ? decodeOpen() : obj;
+    }
+
+
+    // Get an object from the memo, or decode it.
+    // Arrays and dicts are not decoded here. They are pushed onto the stack and OPEN is returned.
+    private Object  startObject(int objectIndex)
+    {
+        if (memo == null)
+            return decodeObject(objectIndex);
+
+        Object  obj = MEMO.getAcquire(memo, objectIndex);
+        if (obj == null) {
+            obj = decodeObject(objectIndex);
+            if (obj != OPEN)
+                MEMO.setRelease(memo, objectIndex, obj);
+        }
+        else if (stats != null)
+            stats.memoHit();
+        return obj;
+    }
+
+
+    private Object  decodeObject(int objectIndex)
+    {
+        in.seek(offset(objectIndex));
+        int marker = in.readByte() & 0xff;
+        if (budget != null)
+            chargeObjects(1);
+        if (stats != null)
+            countObject(marker);
+        if (marker == 0)
+            return null;
+        else if (marker == 8)
+            return Boolean.FALSE;
+        else if (marker == 9)
+            return Boolean.TRUE;
+        //else if (marker == 0x0f)  // "fill byte" = seems to not be ever used?
+
+        int count = marker & 0xf;
+
+        //System.out.println(String.format("Marker=%x count=%x",marker,count));
+        switch ((marker >> 4) & 0xf)
+        {
+            case 1:  // integer
+                if (count >= 4) {
+                    // Some parsers I've seen suggest these 128bit integers are possible.
+                    // They are not in the Apple "spec" (source) though
+                    return new BigInteger( in.readByteArray(16) );
+                }
+                return readNByteNumber(in, 1 << count);
+
+            case 2:  // real
+                int fsz = 1 << count;
+                if (fsz == 4)
+                    return in.readFloatBE();
+                else if (fsz == 8)
+                    return in.readDoubleBE();
+                else
+                    throw new RuntimeException("Unsupported real number size");
+
+            case 3:  // date
+                if (count != 3)
+                    throw new RuntimeException("Unexpected date object format");
+                return Instant.ofEpochMilli(APPLE_DATE_EPOCH + (long) (1000f * in.readDoubleBE()));
+
+            case 4:  // data
+                if (count == 0xf)
+                    count = extendedCount();
+                if (budget != null)
+                    chargeBytes(count);
+                if (stats != null)
+                    stats.bytes(4, count);
+                return in.readData(count);
+
+            case 5:  // string
+                if (count == 0xf)
+                    count = extendedCount();
+                if (budget != null)
+                    chargeBytes(count);
+                if (stats != null)
+                    stats.bytes(5, count);
+                return in.readASCIIString(count);
+
+            case 6:  // string
+                if (count == 0xf)
+                    count = extendedCount();
+                if (budget != null)
+                    chargeBytes(2L * count);
+                if (stats != null)
+                    stats.bytes(6, 2L * count);
+                return in.readUTF16StringBE(count);
+
+            case 8:  // uid
+                return new Uid(readNByteNumber(in, count + 1));
+
+            case 10:  // array
+            case 12:  // set
+                if (count == 0xf)
+                    count = extendedCount();
+                return openArray(objectIndex, count);
+
+            case 13:  // dict
+                if (count == 0xf)
+                    count = extendedCount();
+                return openDict(objectIndex, count);
+
+            default:
+                // The Apple source defines some other marker types.
+                // But it seems like they might not have ever really been used, and are now no longer supported.
+                throw new RuntimeException("Unexpected marker variant");
+        }
+
+    }
+
+
+    // Count an object that is about to be decoded.
+    // Arrays and dicts are counted at the nesting level they will be decoded at, whether or not they are pushed.
+    private void  countObject(int marker)
+    {
+        int  type = marker >> 4;
+        stats.object(type);
+        if (type == ARRAY || type == 12 || type == DICT)
+            stats.depth(baseDepth + depth + 1);
+    }
+
+
+    // Get a dict key, from the key pool if there is one
+    String  readKey(int kRef)
+    {
+        Object  k = (keyPool != null) ? getPooledKey(kRef) : getKey(kRef);
+        if (!(k instanceof String))
+            throw new RuntimeException("Invalid dict key. Expected string.");
+        return (String) k;
+    }
+
+
+    // Returns null if the object isn't a string.
+    // The type is checked before decoding. A key that refers to its own dict would otherwise never end.
+    private Object  getKey(int kRef)
+    {
+        if (memo == null || MEMO.getAcquire(memo, kRef) == null)
+        {
+            int  type = markerType(kRef);
+            if (type != 5 && type != 6)
+                return null;
+        }
+        return getObject(kRef);
+    }
+
+
+    // Returns null if the object isn't a string
+    private Object  getPooledKey(int kRef)
+    {
+        Object  k = (memo != null) ? MEMO.getAcquire(memo, kRef) : null;
+        if (k != null) {
+            if (stats != null)
+                stats.memoHit();
+            return k;
+        }
+
+        in.seek(offset(kRef));
+        int  marker = in.readUnsignedByte();
+        int  type = marker >> 4;
+        if (type != 5 && type != 6)
+            return null;
+        int  count = marker & 0xf;
+        if (count == 0xf)
+            count = extendedCount();
+        if (budget != null) {
+            chargeObjects(1);
+            chargeBytes((type == 6) ? 2L * count : count);
+        }
+        if (stats != null) {
+            stats.object(type);
+            stats.bytes(type, (type == 6) ? 2L * count : count);
+        }
+        k = keyPool.intern(in, count, type == 6);
+        if (memo != null)
+            MEMO.setRelease(memo, kRef, k);
+        return k;
+    }
+
+
+    int  extendedCount()
+    {
+        int next = in.readUnsignedByte();
+        int pow = next & 0xf;
+        if ((next & 0xf0) != 0x10)
+            throw new RuntimeException("Bad extended count marker: "+next);
+        long  count = readNByteNumber(in, 1 << pow);
+        if (count < 0 || count > Integer.MAX_VALUE)
+            throw new RuntimeException("Bad extended count: " + count);
+        return (int) count;
+    }
+
+
+    int  readRef()
+    {
+        return (int) in.readNumberBE(objectRefByteCount);
+    }
+
+
+    // Read the ref at this position, without moving the read position.
+    // Only for refs in a block that has been checked with checkRefs().
+    private int  readRefAt(long pos)
+    {
+        return (int) in.getNumberBE(pos, objectRefByteCount);
+    }
+
+
+    // Check that 'refCount' refs, starting at the current position, are all inside the document.
+    // Having checked the whole block once, the refs can be read with readRefAt().
+    private void  checkRefs(long refCount)
+    {
+        if (refCount * objectRefByteCount > in.remaining())
+            throw new RuntimeException("Not enough bytes left to read this object");
+    }
+
+
+    private Object  openArray(int objectIndex, int count)
+    {
+        checkRefs(count);
+        if (options.isPrimitiveArrays() && count > 0)
+        {
+            Object  primitives = readPrimitiveArray(count);
+            if (primitives != null)
+                return primitives;
+        }
+        if (isParallel(count)) {
+            checkDepth();
+            return getObjectsParallel(readRefs(count), 0);
+        }
+
+        push(objectIndex, ARRAY, count, new Object[count]);
+        return OPEN;
+    }
+
+
+    private Object  openDict(int objectIndex, int count)
+    {
+        checkRefs(2L * count);
+        if (options.isLazy())
+            return parseLazyDict(count);
+        if (isParallel(count)) {
+            checkDepth();
+            return parseDictParallel(count);
+        }
+
+        push(objectIndex, DICT, count, new Dict(count));
+        return OPEN;
+    }
+
+
+    // If all the elements of the array whose refs start at the current position are integers,
+    // or all are reals, return them as a long[] or double[]. Otherwise return null, leaving the
+    // position unchanged. The element markers are checked before any values are read.
+    private Object  readPrimitiveArray(int count)
+    {
+        long  refsStart = in.position();
+        int   type = -1;
+        for (int i = 0; i < count; i++)
+        {
+            in.seek(offset(readRefAt(refsStart + (long) i * objectRefByteCount)));
+            int  marker = in.readUnsignedByte();
+            int  elementType = marker >> 4;
+            boolean  isPrimitive = (elementType == 1 && (marker & 0xf) < 4) ||        // integer that fits in a long
+                                   (elementType == 2 && ((marker & 0xf) == 2 || (marker & 0xf) == 3));  // float or double
+            if (!isPrimitive || (type != -1 && elementType != type)) {
+                in.seek(refsStart);
+                return null;
+            }
+            type = elementType;
+        }
+
+        if (budget != null)
+            chargeObjects(count);
+        long[]    longs = (type == 1) ? new long[count] : null;
+        double[]  doubles = (type == 2) ? new double[count] : null;
+        for (int i = 0; i < count; i++)
+        {
+            in.seek(offset(readRefAt(refsStart + (long) i * objectRefByteCount)));
+            int  size = 1 << (in.readUnsignedByte() & 0xf);
+            if (stats != null)
+                stats.object(type);
+            if (longs != null)
+                longs[i] = readNByteNumber(in, size);
+            else
+                doubles[i] = (size == 4) ? in.readFloatBE() : in.readDoubleBE();
+        }
+        return (longs != null) ? longs : doubles;
+    }
+
+
+    // Fill in the array or dict on the top of the stack, and everything nested inside it.
+    // Returns the finished array or dict.
+    private Object  decodeOpen()
+    {
+        int  base = depth - 1;
+        while (true)
+        {
+            int  top = depth - 1;
+            int  i = stackNext[top];
+            if (i < stackCount[top])
+            {
+                stackNext[top] = i + 1;
+                long  refPos = stackRefs[top] + (long) i * objectRefByteCount;
+                if (stackType[top] == DICT)
+                {
+                    // Get the key. The value ref comes after all the key refs.
+                    stackKey[top] = readKey(readRefAt(refPos));
+                    refPos += (long) stackCount[top] * objectRefByteCount;
+                }
+                Object  value = startObject(readRefAt(refPos));
+                if (value != OPEN)
+                    addToContainer(top, value);
+            }
+            else
+            {
+                Object  container = stackContainer[top];
+                if (memo != null)
+                    MEMO.setRelease(memo, stackObject[top], container);
+                pop();
+                if (top == base)
+                    return container;
+                addToContainer(top - 1, container);
+            }
+        }
+    }
+
+
+    // Store a decoded element in the array or dict at this level of the stack
+    private void  addToContainer(int level, Object value)
+    {
+        if (stackType[level] == DICT)
+            ((Dict) stackContainer[level]).put(stackKey[level], value);
+        else
+            ((Object[]) stackContainer[level])[stackNext[level] - 1] = value;
+    }
+
+
+    // Push an array or dict whose refs start at the current position
+    private void  push(int objectIndex, int type, int count, Object container)
+    {
+        checkDepth();
+        if (stackObject == null || depth == stackObject.length)
+            growStack();
+        stackObject[depth] = objectIndex;
+        stackType[depth] = type;
+        stackCount[depth] = count;
+        stackNext[depth] = 0;
+        stackRefs[depth] = in.position();
+        stackContainer[depth] = container;
+        depth++;
+    }
+
+
+    // Check that there is room for one more level of arrays and dicts.
+    // A cycle of refs would nest forever, so cycles are looked for here, rather than at every level.
+    private void  checkDepth()
+    {
+        if (baseDepth + depth < options.getMaxDepth())
+            return;
+        int[]  ancestors = (depth > 0) ? Arrays.copyOf(stackObject, depth) : new int[0];
+        Arrays.sort(ancestors);
+        for (int i = 1; i < ancestors.length; i++)
+        {
+            if (ancestors[i] == ancestors[i - 1])
+                throw new RuntimeException("Reference cycle: object " + ancestors[i] + " contains itself");
+        }
+        throw new RuntimeException("Objects are nested too deeply. The limit is " + options.getMaxDepth() + " levels.");
+    }
+
+
+    private void  chargeObjects(long count)
+    {
+        if (budget.objects.addAndGet(count) > options.getMaxObjects())
+            throw new RuntimeException("Too many objects. The limit is " + options.getMaxObjects() + ".");
+    }
+
+
+    private void  chargeBytes(long count)
+    {
+        if (budget.bytes.addAndGet(count) > options.getMaxBytes())
+            throw new RuntimeException("Too many bytes of strings and data. The limit is " + options.getMaxBytes() + ".");
+    }
+
+
+    private static final class Budget
+    {
+        final AtomicLong  objects = new AtomicLong();
+        final AtomicLong  bytes = new AtomicLong();
+    }
+
+
+    private void  pop()
+    {
+        depth--;
+        // Don't hold on to finished objects
+        stackContainer[depth] = null;
+        stackKey[depth] = null;
+    }
+
+
+    private void  growStack()
+    {
+        int  size = (stackObject == null) ? 16 : stackObject.length * 2;
+        stackObject = (stackObject == null) ? new int[size] : Arrays.copyOf(stackObject, size);
+        stackType = (stackType == null) ? new int[size] : Arrays.copyOf(stackType, size);
+        stackCount = (stackCount == null) ? new int[size] : Arrays.copyOf(stackCount, size);
+        stackNext = (stackNext == null) ? new int[size] : Arrays.copyOf(stackNext, size);
+        stackRefs = (stackRefs == null) ? new long[size] : Arrays.copyOf(stackRefs, size);
+        stackContainer = (stackContainer == null) ? new Object[size] : Arrays.copyOf(stackContainer, size);
+        stackKey = (stackKey == null) ? new String[size] : Arrays.copyOf(stackKey, size);
+    }
+
+
+
+    // Decode just the keys, and leave the values to be decoded on demand
+    private Dict  parseLazyDict(int count)
+    {
+        LazyDict  dict = new LazyDict(this, count);
+        long  keyRefsStart = in.position();
+        long  kvRefSz = (long) count * objectRefByteCount;
+        for (long i = 0; i < kvRefSz; i+=objectRefByteCount)
+        {
+            String k = readKey(readRefAt(keyRefsStart + i));
+            dict.putRef(k, readRefAt(keyRefsStart + kvRefSz + i));
+        }
+        return dict;
+    }
+
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Parallel decoding
+
+
+    // Only the top few levels are split between threads. That is where nearly all the work is, and
+    // each level decoded in parallel uses the thread's stack, rather than the explicit stack.
+    private boolean  isParallel(int count)
+    {
+        return parallel && baseDepth + depth < MAX_PARALLEL_DEPTH && count >= options.getParallelThreshold();
+    }
+
+
+    // Read 'count' object refs starting at the current position, which have been checked with checkRefs()
+    private int[]  readRefs(int count)
+    {
+        long   refsStart = in.position();
+        int[]  refs = new int[count];
+        for (int i = 0; i < count; i++) {
+            refs[i] = readRefAt(refsStart + (long) i * objectRefByteCount);
+        }
+        return refs;
+    }
+
+
+    private Dict  parseDictParallel(int count)
+    {
+        // The key refs are followed immediately by the value refs
+        int[]     refs = readRefs(count * 2);
+        Object[]  objs = getObjectsParallel(refs, count);
+
+        Dict  dict = new Dict(count);
+        for (int i = 0; i < count; i++) {
+            dict.put((String) objs[i], objs[count + i]);
+        }
+        return dict;
+    }
+
+
+    // Decode the given objects, splitting the work between the threads of the fork/join pool.
+    // The first 'keyCount' objects are dict keys.
+    private Object[]  getObjectsParallel(int[] refs, int keyCount)
+    {
+        Object[]  results = new Object[refs.length];
+        DecodeTask  task = new DecodeTask(refs, keyCount, results, 0, refs.length);
+        try
+        {
+            if (ForkJoinTask.inForkJoinPool())
+                task.invoke();
+            else
+                ForkJoinPool.commonPool().invoke(task);
+        }
+        catch (RuntimeException e)
+        {
+            // An exception thrown on another thread is rethrown as a copy, with the original as its cause.
+            // Rethrow the original, so that the error message isn't prefixed with the exception class.
+            if (e.getCause() != null && e.getCause().getClass() == e.getClass())
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+        return results;
+    }
+
+
+    private class DecodeTask extends RecursiveAction
+    {
+        private static final long  serialVersionUID = 1L;
+
+        private final int[]     refs;
+        private final int       keyCount;
+        private final Object[]  results;
+        private final int       from;
+        private final int       to;
+
+        DecodeTask(int[] refs, int keyCount, Object[] results, int from, int to)
+        {
+            this.refs = refs;
+            this.keyCount = keyCount;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void  compute()
+        {
+            if (to - from <= options.getParallelThreshold())
+            {
+                Decoder  cursor = new Decoder(Decoder.this);
+                for (int i = from; i < to; i++) {
+                    results[i] = (i < keyCount) ? cursor.readKey(refs[i]) : cursor.getObject(refs[i]);
+                }
+                if (stats != null)
+                    stats.merge(cursor.stats);
+            }
+            else
+            {
+                int  mid = (from + to) >>> 1;
+                invokeAll(new DecodeTask(refs, keyCount, results, from, mid),
+                          new DecodeTask(refs, keyCount, results, mid, to));
+            }
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Event based parsing
+
+
+    // Report an object, and everything below it, to the handler
+    // without building any arrays or dicts.
+    void  walk(int objectIndex, PlistHandler handler)
+    {
+        int  base = depth;
+        startWalk(objectIndex, handler);
+        while (depth > base)
+        {
+            int  top = depth - 1;
+            int  i = stackNext[top];
+            if (i < stackCount[top])
+            {
+                stackNext[top] = i + 1;
+                long  refPos = stackRefs[top] + (long) i * objectRefByteCount;
+                if (stackType[top] == DICT)
+                {
+                    handler.key(readKey(readRefAt(refPos)));
+                    refPos += (long) stackCount[top] * objectRefByteCount;
+                }
+                startWalk(readRefAt(refPos), handler);
+            }
+            else
+            {
+                int  type = stackType[top];
+                pop();
+                if (type == DICT)
+                    handler.endDict();
+                else
+                    handler.endArray();
+            }
+        }
+    }
+
+
+    // Report a non-container object, or report the start of an array or dict and push it onto the stack
+    private void  startWalk(int objectIndex, PlistHandler handler)
+    {
+        in.seek(offset(objectIndex));
+        int marker = in.readUnsignedByte();
+        switch (marker >> 4)
+        {
+            case 10:  // array
+            case 12:  // set
+            {
+                int  count = containerCount(marker);
+                checkRefs(count);
+                handler.startArray(count);
+                push(objectIndex, ARRAY, count, null);
+                break;
+            }
+
+            case 13:  // dict
+            {
+                int  count = containerCount(marker);
+                checkRefs(2L * count);
+                handler.startDict(count);
+                push(objectIndex, DICT, count, null);
+                break;
+            }
+
+            default:
+                handler.value(getObject(objectIndex));
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Path queries
+
+
+    // Follow a path down from the top object, reading only the refs and keys along the way.
+    // Returns the index of the object the path leads to, or -1 if there is no such object.
+    int  find(PlistPath path)
+    {
+        int  objectIndex = topObject;
+        for (int step = 0; step < path.length(); step++)
+        {
+            in.seek(offset(objectIndex));
+            int     marker = in.readUnsignedByte();
+            String  key = path.key(step);
+            switch (marker >> 4)
+            {
+                case 10:  // array
+                case 12:  // set
+                {
+                    int  index = (key == null) ? path.index(step) : PlistPath.parseIndex(key);
+                    int  count = containerCount(marker);
+                    if (index < 0 || index >= count)
+                        return -1;
+                    checkRefs(count);
+                    objectIndex = readRefAt(in.position() + (long) index * objectRefByteCount);
+                    break;
+                }
+
+                case 13:  // dict
+                {
+                    if (key == null)
+                        return -1;
+                    objectIndex = findKey(containerCount(marker), key);
+                    if (objectIndex < 0)
+                        return -1;
+                    break;
+                }
+
+                default:
+                    return -1;
+            }
+        }
+        return objectIndex;
+    }
+
+
+    // The marker type of an object: the top four bits of its marker byte
+    int  markerType(int objectIndex)
+    {
+        in.seek(offset(objectIndex));
+        return in.readUnsignedByte() >> 4;
+    }
+
+
+    // The refs of an array, set or dict, without decoding the objects they refer to.
+    // For dicts, the key refs are followed by the value refs.
+    int[]  containerRefs(int objectIndex)
+    {
+        in.seek(offset(objectIndex));
+        int  marker = in.readUnsignedByte();
+        int  type = marker >> 4;
+        if (type != 10 && type != 12 && type != 13)
+            throw new RuntimeException("Object " + objectIndex + " is not an array or dict");
+        long  refCount = (type == 13) ? 2L * containerCount(marker) : containerCount(marker);
+        if (refCount > Integer.MAX_VALUE)
+            throw new RuntimeException("Object " + objectIndex + " is too large");
+        checkRefs(refCount);
+        return readRefs((int) refCount);
+    }
+
+
+    // Look up a key in the dict whose key refs start at the current position.
+    // Returns the value's object index, or -1 if the key isn't there.
+    private int  findKey(int count, String key)
+    {
+        checkRefs(2L * count);
+        long  keyRefsStart = in.position();
+        for (int i = 0; i < count; i++)
+        {
+            if (keyEquals(readRefAt(keyRefsStart + (long) i * objectRefByteCount), key))
+                return readRefAt(keyRefsStart + (long) (count + i) * objectRefByteCount);
+        }
+        return -1;
+    }
+
+
+    // Check whether a key object is equal to the given string.
+    // The length in the string's marker is checked first, so most non-matching keys are never decoded.
+    boolean  keyEquals(int kRef, String key)
+    {
+        in.seek(offset(kRef));
+        int  marker = in.readUnsignedByte();
+        int  type = marker >> 4;
+        if (type != 5 && type != 6)
+            throw new RuntimeException("Invalid dict key. Expected string.");
+        int  count = marker & 0xf;
+        if (count == 0xf)
+            count = extendedCount();
+        // Both ASCII and UTF-16 string lengths are in chars, the same as String.length()
+        return count == key.length() && key.equals(getObject(kRef));
+    }
+
+
+    // Get the element count of an array, set or dict whose marker has just been read
+    private int  containerCount(int marker)
+    {
+        int  count = marker & 0xf;
+        return (count == 0xf) ? extendedCount() : count;
+    }
+
+}
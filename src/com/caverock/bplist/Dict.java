@@ -55,6 +55,11 @@ public class Dict extends HashMap<String, Object>
         return (Dict) get(key);
     }
 
+    public Data  getData(String key)
+    {
+        return (Data) get(key);
+    }
+
     public Uid  getUid(String key)
     {
         return (Uid) get(key);
@@ -65,10 +70,53 @@ public class Dict extends HashMap<String, Object>
         return (Object[]) get(key);
     }
 
+    /**
+     * Returns an array of Uids. The first call converts the array to a Uid[] and stores that in
+     * place of the original, so later calls return the same array without copying it.
+     */
     public Uid[] getUidArray(String key)
     {
-        Object[]  objs = (Object[]) get(key);
-        return Arrays.copyOf(objs, objs.length, Uid[].class);
+        Object  val = get(key);
+        if (val == null || val instanceof Uid[])
+            return (Uid[]) val;
+        Object[]  objs = (Object[]) val;
+        Uid[]  uids = Arrays.copyOf(objs, objs.length, Uid[].class);
+        put(key, uids);
+        return uids;
+    }
+
+    /**
+     * Returns an array of integers. The array is returned as is if it was decoded as a long[]
+     * (see {@link DecodeOptions#setPrimitiveArrays(boolean)}), otherwise it is converted.
+     */
+    public long[] getLongArray(String key)
+    {
+        Object  val = get(key);
+        if (val == null || val instanceof long[])
+            return (long[]) val;
+        Object[]  objs = (Object[]) val;
+        long[]  result = new long[objs.length];
+        for (int i = 0; i < objs.length; i++) {
+            result[i] = ((Number) objs[i]).longValue();
+        }
+        return result;
+    }
+
+    /**
+     * Returns an array of reals. The array is returned as is if it was decoded as a double[]
+     * (see {@link DecodeOptions#setPrimitiveArrays(boolean)}), otherwise it is converted.
+     */
+    public double[] getDoubleArray(String key)
+    {
+        Object  val = get(key);
+        if (val == null || val instanceof double[])
+            return (double[]) val;
+        Object[]  objs = (Object[]) val;
+        double[]  result = new double[objs.length];
+        for (int i = 0; i < objs.length; i++) {
+            result[i] = ((Number) objs[i]).doubleValue();
+        }
+        return result;
     }
 
 
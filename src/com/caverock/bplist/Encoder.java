@@ -0,0 +1,493 @@
+package com.caverock.bplist;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.IntToLongFunction;
+
+/*
+ * Writes an object graph out as a "bplist00" file.
+ *
+ * Encoding is done in two passes. The first assigns an object index to every object in the graph,
+ * sharing one object between all equal strings, numbers, dates, uids and data, and between all
+ * references to the same array or dict instance. The second pass writes the objects in index
+ * order through a small buffer, followed by the offset table and trailer. The encoded file is
+ * never held in memory as a whole.
+ *
+ * Refs and offsets are written with the smallest byte count that fits.
+ */
+class Encoder
+{
+    private static final int  BUFFER_SIZE = 64 * 1024;
+
+    // Stands in for null values in the scalar lookup table
+    private static final Object  NULL_KEY = new Object();
+
+    // The objects to write, in object index order.
+    // Arrays and dicts are represented by their child refs (see below).
+    private final List<Object>               objects = new ArrayList<>();
+    // Object index of each scalar value already seen
+    private final Map<Object,Integer>         scalarIndexes = new HashMap<>();
+    // Object index of each container already seen. Containers are only shared if they are the same instance.
+    private final Map<Object,Integer>         containerIndexes = new IdentityHashMap<>();
+    // Containers currently being flattened. Used to detect cycles.
+    private final Set<Object>                 inProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // The object index of the first entry in 'objects'. Non-zero when appending to an existing document.
+    private final int  firstIndex;
+
+    private WritableByteChannel  channel;
+    private ByteBuffer           buf;
+    private long                 written;
+
+
+    // The child refs of an array, or the key refs followed by value refs of a dict
+    private static final class ContainerRefs
+    {
+        final boolean  isDict;
+        final int[]    refs;
+
+        ContainerRefs(boolean isDict, int[] refs)
+        {
+            this.isDict = isDict;
+            this.refs = refs;
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    Encoder()
+    {
+        this(0);
+    }
+
+
+    // An encoder for objects to be appended to a document that already has 'firstIndex' objects
+    Encoder(int firstIndex)
+    {
+        this.firstIndex = firstIndex;
+    }
+
+
+    // Write the graph rooted at 'top' to the channel.
+    // Returns the number of bytes written.
+    long  encode(Object top, WritableByteChannel channel) throws IOException
+    {
+        int  topObject = flatten(top);
+
+        this.channel = channel;
+        this.buf = ByteBuffer.allocate(BUFFER_SIZE);
+        this.written = 0;
+
+        put("bplist00".getBytes(StandardCharsets.US_ASCII));
+        writeObjects(topObject, byteCountFor(objects.size() - 1), null);
+        return written;
+    }
+
+
+    // Append the objects added so far to the end of an existing document, followed by a new offset
+    // table and trailer. 'start' is the length of the document, which the channel is positioned at.
+    // The first 'firstIndex' offsets in the new table are copied from 'oldOffsets'. The refs of the new
+    // objects are written with the document's existing ref size, which the caller must check is big enough.
+    // Returns the number of bytes written.
+    long  append(WritableByteChannel channel, long start, IntToLongFunction oldOffsets,
+                 int topObject, int objectRefByteCount) throws IOException
+    {
+        this.channel = channel;
+        this.buf = ByteBuffer.allocate(BUFFER_SIZE);
+        this.written = start;
+
+        writeObjects(topObject, objectRefByteCount, oldOffsets);
+        return written - start;
+    }
+
+
+    // The total number of objects, including any in the document being appended to
+    int  numObjects()
+    {
+        return firstIndex + objects.size();
+    }
+
+
+    // Write the objects, then the offset table and trailer
+    private void  writeObjects(int topObject, int objectRefByteCount, IntToLongFunction oldOffsets) throws IOException
+    {
+        long[]  offsets = new long[objects.size()];
+        for (int i = 0; i < offsets.length; i++)
+        {
+            offsets[i] = written;
+            writeObject(objects.get(i), objectRefByteCount);
+        }
+
+        long  offsetTableStart = written;
+        int   offsetTableByteCount = byteCountFor(offsetTableStart);
+        for (int i = 0; i < firstIndex; i++) {
+            putNByteNumber(oldOffsets.applyAsLong(i), offsetTableByteCount);
+        }
+        for (long offset: offsets) {
+            putNByteNumber(offset, offsetTableByteCount);
+        }
+
+        // Trailer
+        ensure(32);
+        buf.put(new byte[6]);
+        buf.put((byte) offsetTableByteCount);
+        buf.put((byte) objectRefByteCount);
+        buf.putLong(numObjects());
+        buf.putLong(topObject);
+        buf.putLong(offsetTableStart);
+        written += 32;
+
+        flush();
+    }
+
+
+    // The number of bytes needed to store refs or offsets up to maxValue
+    static int  byteCountFor(long maxValue)
+    {
+        if (maxValue < (1L << 8))
+            return 1;
+        else if (maxValue < (1L << 16))
+            return 2;
+        else if (maxValue < (1L << 32))
+            return 4;
+        return 8;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Pass 1: assign object indexes
+
+
+    // Returns the object index of 'obj', adding it, and anything it contains, if it hasn't been seen before
+    int  flatten(Object obj)
+    {
+        if (obj instanceof Map || obj instanceof Object[] || obj instanceof Collection ||
+                obj instanceof long[] || obj instanceof double[])
+            return flattenContainer(obj);
+
+        Object  key = scalarKey(obj);
+        Integer  index = scalarIndexes.get(key);
+        if (index == null)
+        {
+            index = numObjects();
+            objects.add(obj);
+            scalarIndexes.put(key, index);
+        }
+        return index;
+    }
+
+
+    // Normalise scalar values so that values which encode to the same bytes get shared
+    private static Object  scalarKey(Object obj)
+    {
+        if (obj == null)
+            return NULL_KEY;
+        if (obj instanceof Integer || obj instanceof Short || obj instanceof Byte)
+            return ((Number) obj).longValue();
+        if (obj instanceof BigInteger && ((BigInteger) obj).bitLength() < 64)
+            return ((BigInteger) obj).longValue();
+        if (obj instanceof Uid)
+            return new UidKey(((Uid) obj).getUid());
+        if (obj instanceof int[])
+            return new Data(toBytes((int[]) obj));
+        return obj;
+    }
+
+
+    // Uid doesn't implement equals(), so wrap it for the lookup table
+    private static final class UidKey
+    {
+        final long  uid;
+
+        UidKey(long uid)
+        {
+            this.uid = uid;
+        }
+
+        @Override
+        public boolean  equals(Object o)
+        {
+            return (o instanceof UidKey) && ((UidKey) o).uid == uid;
+        }
+
+        @Override
+        public int  hashCode()
+        {
+            return Long.hashCode(uid);
+        }
+    }
+
+
+    private int  flattenContainer(Object obj)
+    {
+        Integer  existing = containerIndexes.get(obj);
+        if (existing != null)
+            return existing;
+        if (!inProgress.add(obj))
+            throw new IllegalArgumentException("Object graph contains a cycle");
+
+        // Reserve our index before our children, so that the top object comes first
+        int  index = numObjects();
+        objects.add(null);
+
+        ContainerRefs  refs;
+        if (obj instanceof Map)
+        {
+            Map<?,?>  map = (Map<?,?>) obj;
+            int[]  kvRefs = new int[map.size() * 2];
+            int  i = 0;
+            for (Map.Entry<?,?> entry: map.entrySet())
+            {
+                if (!(entry.getKey() instanceof String))
+                    throw new IllegalArgumentException("Invalid dict key. Expected string.");
+                kvRefs[i] = flatten(entry.getKey());
+                kvRefs[map.size() + i] = flatten(entry.getValue());
+                i++;
+            }
+            refs = new ContainerRefs(true, kvRefs);
+        }
+        else
+        {
+            Object[]  elements;
+            if (obj instanceof Collection)
+                elements = ((Collection<?>) obj).toArray();
+            else if (obj instanceof long[])
+                elements = Arrays.stream((long[]) obj).boxed().toArray();
+            else if (obj instanceof double[])
+                elements = Arrays.stream((double[]) obj).boxed().toArray();
+            else
+                elements = (Object[]) obj;
+            int[]  elementRefs = new int[elements.length];
+            for (int i = 0; i < elements.length; i++) {
+                elementRefs[i] = flatten(elements[i]);
+            }
+            refs = new ContainerRefs(false, elementRefs);
+        }
+
+        objects.set(index - firstIndex, refs);
+        inProgress.remove(obj);
+        containerIndexes.put(obj, index);
+        return index;
+    }
+
+
+    // Add an array or dict whose refs are already known, such as a container from an existing
+    // document with some of its refs changed. Returns its object index.
+    int  addContainer(boolean isDict, int[] refs)
+    {
+        objects.add(new ContainerRefs(isDict, refs));
+        return numObjects() - 1;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Pass 2: write the objects
+
+
+    private void  writeObject(Object obj, int objectRefByteCount) throws IOException
+    {
+        if (obj == null)
+            putByte(0x00);
+        else if (obj instanceof Boolean)
+            putByte(((Boolean) obj) ? 0x09 : 0x08);
+        else if (obj instanceof Long || obj instanceof Integer || obj instanceof Short || obj instanceof Byte)
+            writeInteger(((Number) obj).longValue());
+        else if (obj instanceof BigInteger)
+            writeBigInteger((BigInteger) obj);
+        else if (obj instanceof Float)
+        {
+            ensure(5);
+            buf.put((byte) 0x22).putFloat((Float) obj);
+            written += 5;
+        }
+        else if (obj instanceof Double)
+        {
+            ensure(9);
+            buf.put((byte) 0x23).putDouble((Double) obj);
+            written += 9;
+        }
+        else if (obj instanceof Instant)
+        {
+            ensure(9);
+            double  seconds = (((Instant) obj).toEpochMilli() - Decoder.APPLE_DATE_EPOCH) / 1000.0;
+            buf.put((byte) 0x33).putDouble(seconds);
+            written += 9;
+        }
+        else if (obj instanceof Data)
+        {
+            ByteBuffer  data = ((Data) obj).getBuffer();
+            writeMarker(0x40, data.remaining());
+            put(data);
+        }
+        else if (obj instanceof int[])
+        {
+            int[]  data = (int[]) obj;
+            writeMarker(0x40, data.length);
+            put(toBytes(data));
+        }
+        else if (obj instanceof String)
+            writeString((String) obj);
+        else if (obj instanceof Uid)
+            writeUid(((Uid) obj).getUid());
+        else if (obj instanceof ContainerRefs)
+        {
+            ContainerRefs  container = (ContainerRefs) obj;
+            if (container.isDict)
+                writeMarker(0xd0, container.refs.length / 2);
+            else
+                writeMarker(0xa0, container.refs.length);
+            for (int ref: container.refs) {
+                putNByteNumber(ref, objectRefByteCount);
+            }
+        }
+        else
+            throw new IllegalArgumentException("Unsupported object type: " + obj.getClass().getName());
+    }
+
+
+    private void  writeInteger(long value) throws IOException
+    {
+        // Negative numbers are always written as 8 bytes. Smaller sizes are read as unsigned.
+        int  byteCount = (value < 0) ? 8 : byteCountFor(value);
+        putByte(0x10 | Integer.numberOfTrailingZeros(byteCount));
+        putNByteNumber(value, byteCount);
+    }
+
+
+    private void  writeBigInteger(BigInteger value) throws IOException
+    {
+        if (value.bitLength() < 64) {
+            writeInteger(value.longValue());
+            return;
+        }
+        if (value.bitLength() >= 128)
+            throw new IllegalArgumentException("Integer too large to encode: " + value);
+        // 128 bit integer, big-endian two's complement
+        byte[]  bytes = value.toByteArray();
+        byte[]  padded = new byte[16];
+        byte    fill = (byte) (value.signum() < 0 ? 0xff : 0);
+        Arrays.fill(padded, 0, 16 - bytes.length, fill);
+        System.arraycopy(bytes, 0, padded, 16 - bytes.length, bytes.length);
+        putByte(0x14);
+        put(padded);
+    }
+
+
+    private void  writeString(String str) throws IOException
+    {
+        boolean  isAscii = true;
+        for (int i = 0; i < str.length() && isAscii; i++) {
+            isAscii = str.charAt(i) < 0x80;
+        }
+
+        if (isAscii)
+        {
+            writeMarker(0x50, str.length());
+            put(str.getBytes(StandardCharsets.US_ASCII));
+        }
+        else
+        {
+            // Count is the number of UTF-16 code units
+            writeMarker(0x60, str.length());
+            put(str.getBytes(StandardCharsets.UTF_16BE));
+        }
+    }
+
+
+    private void  writeUid(long uid) throws IOException
+    {
+        int  byteCount = byteCountFor(uid);
+        putByte(0x80 | (byteCount - 1));
+        putNByteNumber(uid, byteCount);
+    }
+
+
+    // Write a marker byte with its count, using an extended count if necessary
+    private void  writeMarker(int type, int count) throws IOException
+    {
+        if (count < 0xf) {
+            putByte(type | count);
+        } else {
+            putByte(type | 0xf);
+            writeInteger(count);
+        }
+    }
+
+
+    private static byte[]  toBytes(int[] data)
+    {
+        byte[]  bytes = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            bytes[i] = (byte) data[i];
+        }
+        return bytes;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Buffered output
+
+
+    private void  ensure(int count) throws IOException
+    {
+        if (buf.remaining() < count)
+            flush();
+    }
+
+
+    private void  flush() throws IOException
+    {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+
+    private void  putByte(int b) throws IOException
+    {
+        ensure(1);
+        buf.put((byte) b);
+        written++;
+    }
+
+
+    private void  putNByteNumber(long value, int byteCount) throws IOException
+    {
+        ensure(byteCount);
+        for (int shift = (byteCount - 1) * 8; shift >= 0; shift -= 8) {
+            buf.put((byte) (value >>> shift));
+        }
+        written += byteCount;
+    }
+
+
+    private void  put(byte[] bytes) throws IOException
+    {
+        put(ByteBuffer.wrap(bytes));
+    }
+
+
+    private void  put(ByteBuffer src) throws IOException
+    {
+        written += src.remaining();
+        while (src.hasRemaining())
+        {
+            if (!buf.hasRemaining())
+                flush();
+            int  n = Math.min(buf.remaining(), src.remaining());
+            ByteBuffer  part = src.slice().limit(n);
+            buf.put(part);
+            src.position(src.position() + n);
+        }
+    }
+
+}
@@ -0,0 +1,434 @@
+package com.caverock.bplist;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * A compact, read-only form of a decoded bplist, returned by {@link BPList#decodeFlat(java.io.File)}.
+ *
+ * Rather than a tree of Dicts and arrays, the document is held as a handful of flat arrays with
+ * one entry per object in the file: a type tag, a number (or an offset to the object's bytes
+ * or children), and a size. Objects that the file shares, such as repeated dict keys, are
+ * stored once. This typically takes a small fraction of the memory of the equivalent Dict.
+ *
+ * Use {@link #cursor()} to navigate the document. FlatPlists are immutable, so they can be
+ * cached and shared freely between threads. Cursors are not thread-safe, but are cheap to create.
+ */
+public final class FlatPlist
+{
+    // Type tags
+    static final byte  NULL = 0;
+    static final byte  FALSE = 1;
+    static final byte  TRUE = 2;
+    static final byte  INT = 3;
+    static final byte  BIGINT = 4;     // bytes are in 'bytes'
+    static final byte  FLOAT = 5;
+    static final byte  DOUBLE = 6;
+    static final byte  DATE = 7;       // seconds since the Apple epoch, as double bits
+    static final byte  DATA = 8;       // bytes are in 'bytes'
+    static final byte  ASCII = 9;      // bytes are in 'bytes'
+    static final byte  UTF16 = 10;     // big-endian chars are in 'bytes'
+    static final byte  UID = 11;
+    static final byte  ARRAY = 12;     // element indexes are in 'children'
+    static final byte  DICT = 13;      // key indexes followed by value indexes are in 'children'
+
+    private final byte[]  tags;       // type tag of each object
+    private final long[]  values;     // number or bits, or the offset into 'bytes' or 'children'
+    private final int[]   sizes;      // number of chars, bytes or elements
+    private final int[]   children;
+    private final byte[]  bytes;
+    private final int     root;
+    private final int     maxDepth;
+
+
+    private FlatPlist(byte[] tags, long[] values, int[] sizes, int[] children, byte[] bytes, int root, int maxDepth)
+    {
+        this.tags = tags;
+        this.values = values;
+        this.sizes = sizes;
+        this.children = children;
+        this.bytes = bytes;
+        this.root = root;
+        this.maxDepth = maxDepth;
+    }
+
+
+    /**
+     * Returns a new cursor, positioned at the root object.
+     */
+    public PlistCursor  cursor()
+    {
+        return new PlistCursor(this);
+    }
+
+
+    /**
+     * The number of objects in the document.
+     */
+    public int  objectCount()
+    {
+        return tags.length;
+    }
+
+
+    /**
+     * The approximate number of bytes of memory used by the document.
+     */
+    public long  memoryUsage()
+    {
+        return tags.length + 8L * values.length + 4L * sizes.length + 4L * children.length + bytes.length;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Building
+
+
+    // Convert every object in the document, in one pass through the offset table
+    static FlatPlist  build(Decoder decoder)
+    {
+        BytesReader  in = decoder.in;
+        int          numObjects = decoder.numObjects;
+
+        byte[]  tags = new byte[numObjects];
+        long[]  values = new long[numObjects];
+        int[]   sizes = new int[numObjects];
+        Builder  out = new Builder(numObjects);
+
+        for (int i = 0; i < numObjects; i++)
+        {
+            in.seek(decoder.offset(i));
+            int  marker = in.readUnsignedByte();
+            int  count = marker & 0xf;
+            switch (marker >> 4)
+            {
+                case 0:
+                    if (marker == 0)
+                        tags[i] = NULL;
+                    else if (marker == 8)
+                        tags[i] = FALSE;
+                    else if (marker == 9)
+                        tags[i] = TRUE;
+                    else
+                        throw new RuntimeException("Unexpected marker variant");
+                    break;
+
+                case 1:  // integer
+                    if (count >= 4) {
+                        tags[i] = BIGINT;
+                        values[i] = out.copyBytes(in, 16);
+                        sizes[i] = 16;
+                    } else {
+                        tags[i] = INT;
+                        values[i] = Decoder.readNByteNumber(in, 1 << count);
+                    }
+                    break;
+
+                case 2:  // real
+                    if (count == 2) {
+                        tags[i] = FLOAT;
+                        values[i] = Float.floatToRawIntBits(in.readFloatBE());
+                    } else if (count == 3) {
+                        tags[i] = DOUBLE;
+                        values[i] = Double.doubleToRawLongBits(in.readDoubleBE());
+                    } else
+                        throw new RuntimeException("Unsupported real number size");
+                    break;
+
+                case 3:  // date
+                    if (count != 3)
+                        throw new RuntimeException("Unexpected date object format");
+                    tags[i] = DATE;
+                    values[i] = Double.doubleToRawLongBits(in.readDoubleBE());
+                    break;
+
+                case 4:  // data
+                case 5:  // string
+                case 6:  // string
+                {
+                    if (count == 0xf)
+                        count = decoder.extendedCount();
+                    int  type = marker >> 4;
+                    tags[i] = (type == 4) ? DATA : (type == 5) ? ASCII : UTF16;
+                    values[i] = out.copyBytes(in, (type == 6) ? count * 2 : count);
+                    sizes[i] = count;
+                    break;
+                }
+
+                case 8:  // uid
+                    tags[i] = UID;
+                    values[i] = Decoder.readNByteNumber(in, count + 1);
+                    break;
+
+                case 10:  // array
+                case 12:  // set
+                case 13:  // dict
+                {
+                    if (count == 0xf)
+                        count = decoder.extendedCount();
+                    boolean  isDict = (marker >> 4) == 13;
+                    tags[i] = isDict ? DICT : ARRAY;
+                    values[i] = out.copyRefs(decoder, isDict ? count * 2 : count, numObjects);
+                    sizes[i] = count;
+                    break;
+                }
+
+                default:
+                    throw new RuntimeException("Unexpected marker variant");
+            }
+        }
+
+        // Now that all the types are known, check that the dict keys are strings
+        for (int i = 0; i < numObjects; i++)
+        {
+            if (tags[i] != DICT)
+                continue;
+            for (int k = 0; k < sizes[i]; k++)
+            {
+                byte  keyTag = tags[out.children[(int) values[i] + k]];
+                if (keyTag != ASCII && keyTag != UTF16)
+                    throw new RuntimeException("Invalid dict key. Expected string.");
+            }
+        }
+
+        int  maxDepth = decoder.options.getMaxDepth();
+        checkNesting(tags, values, sizes, out.children, decoder.topObject, maxDepth);
+
+        return new FlatPlist(tags, values, sizes, Arrays.copyOf(out.children, out.childCount),
+                             Arrays.copyOf(out.bytes, out.byteCount), decoder.topObject, maxDepth);
+    }
+
+
+    // Check that the arrays and dicts under the root are no more than maxDepth levels deep, and that
+    // none of them contains itself. decode() finds these as it goes. Here they are found up front,
+    // so that a cursor never runs into them. Each container is visited once: a container that is
+    // shared is checked using the number of levels below it, which is worked out the first time.
+    private static void  checkNesting(byte[] tags, long[] values, int[] sizes, int[] children, int root, int maxDepth)
+    {
+        if (!isContainer(tags[root]))
+            return;
+
+        int[]   levels = new int[tags.length];   // levels of containers at and below each finished container
+        byte[]  state = new byte[tags.length];   // 0 = not visited, 1 = on the current path, 2 = finished
+        int[]   pathNode = new int[16];
+        int[]   pathNext = new int[16];
+        int     depth = 0;
+
+        pathNode[depth++] = root;
+        state[root] = 1;
+        while (depth > 0)
+        {
+            int  node = pathNode[depth - 1];
+            if (pathNext[depth - 1] == sizes[node])
+            {
+                // Finished with this container
+                levels[node]++;
+                state[node] = 2;
+                depth--;
+                if (depth > 0)
+                    levels[pathNode[depth - 1]] = Math.max(levels[pathNode[depth - 1]], levels[node]);
+                continue;
+            }
+
+            // The values of a dict come after its keys, which have already been checked
+            int  first = (int) values[node] + ((tags[node] == DICT) ? sizes[node] : 0);
+            int  child = children[first + pathNext[depth - 1]++];
+            if (!isContainer(tags[child]))
+                continue;
+            if (state[child] == 1)
+                throw new RuntimeException("Reference cycle: object " + child + " contains itself");
+            if (state[child] == 2)
+            {
+                if (depth + levels[child] > maxDepth)
+                    throw new RuntimeException("Objects are nested too deeply. The limit is " + maxDepth + " levels.");
+                levels[node] = Math.max(levels[node], levels[child]);
+                continue;
+            }
+            if (depth >= maxDepth)
+                throw new RuntimeException("Objects are nested too deeply. The limit is " + maxDepth + " levels.");
+            if (depth == pathNode.length) {
+                pathNode = Arrays.copyOf(pathNode, depth * 2);
+                pathNext = Arrays.copyOf(pathNext, depth * 2);
+            }
+            pathNode[depth] = child;
+            pathNext[depth] = 0;
+            state[child] = 1;
+            depth++;
+        }
+    }
+
+
+    private static boolean  isContainer(byte tag)
+    {
+        return tag == ARRAY || tag == DICT;
+    }
+
+
+    // The growable child ref and byte arrays, while building
+    private static final class Builder
+    {
+        int[]   children;
+        int     childCount = 0;
+        byte[]  bytes;
+        int     byteCount = 0;
+
+        Builder(int numObjects)
+        {
+            children = new int[Math.max(16, numObjects)];
+            bytes = new byte[Math.max(256, numObjects * 8)];
+        }
+
+        // Copy the next 'length' bytes from the reader. Returns their offset.
+        int  copyBytes(BytesReader in, int length)
+        {
+            if (length > Integer.MAX_VALUE - byteCount)
+                throw new RuntimeException("Document is too large to flatten");
+            if (byteCount + length > bytes.length)
+                bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(byteCount + length, 2L * bytes.length)));
+            long  from = in.consume(length, "Not enough bytes left to read this object");
+            in.getBytes(from, bytes, byteCount, length);
+            int  offset = byteCount;
+            byteCount += length;
+            return offset;
+        }
+
+        // Read 'count' refs from the decoder. Returns the offset of the first.
+        int  copyRefs(Decoder decoder, int count, int numObjects)
+        {
+            if (count > Integer.MAX_VALUE - 8 - childCount)
+                throw new RuntimeException("Document is too large to flatten");
+            if (childCount + count > children.length)
+                children = Arrays.copyOf(children, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(childCount + count, 2L * children.length)));
+            int  offset = childCount;
+            for (int i = 0; i < count; i++)
+            {
+                int  ref = decoder.readRef();
+                if (ref < 0 || ref >= numObjects)
+                    throw new RuntimeException("Invalid object ref: " + ref);
+                children[childCount++] = ref;
+            }
+            return offset;
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Access, for PlistCursor
+
+
+    int  root()
+    {
+        return root;
+    }
+
+    byte  tag(int node)
+    {
+        return tags[node];
+    }
+
+    long  value(int node)
+    {
+        return values[node];
+    }
+
+    int  size(int node)
+    {
+        return sizes[node];
+    }
+
+    // The object index of the i'th child. For dicts, the keys come first, followed by the values.
+    int  child(int node, int i)
+    {
+        return children[(int) values[node] + i];
+    }
+
+
+    String  string(int node)
+    {
+        int  offset = (int) values[node];
+        if (tags[node] == ASCII)
+            return new String(bytes, offset, sizes[node], StandardCharsets.US_ASCII);
+        return new String(bytes, offset, sizes[node] * 2, StandardCharsets.UTF_16BE);
+    }
+
+
+    // Compare a string object with 'str', without creating a String
+    boolean  stringEquals(int node, String str)
+    {
+        int  length = sizes[node];
+        if (length != str.length())
+            return false;
+        int  offset = (int) values[node];
+        boolean  utf16 = (tags[node] == UTF16);
+        for (int i = 0; i < length; i++)
+        {
+            int  ch = utf16 ? ((bytes[offset + 2 * i] & 0xff) << 8) | (bytes[offset + 2 * i + 1] & 0xff)
+                            : bytes[offset + i] & 0xff;
+            // Non-ASCII bytes decode to the replacement char, so never match
+            if (ch != str.charAt(i) || (!utf16 && ch >= 0x80))
+                return false;
+        }
+        return true;
+    }
+
+
+    Data  data(int node)
+    {
+        return new Data(ByteBuffer.wrap(bytes, (int) values[node], sizes[node]));
+    }
+
+
+    BigInteger  bigInteger(int node)
+    {
+        int  offset = (int) values[node];
+        return new BigInteger(Arrays.copyOfRange(bytes, offset, offset + sizes[node]));
+    }
+
+
+    Instant  date(int node)
+    {
+        return Instant.ofEpochMilli(Decoder.APPLE_DATE_EPOCH + (long) (1000f * Double.longBitsToDouble(values[node])));
+    }
+
+
+    // Convert an object, and everything below it, to the same form that decode() would return
+    Object  toObject(int node, int depth)
+    {
+        switch (tags[node])
+        {
+            case NULL:    return null;
+            case FALSE:   return Boolean.FALSE;
+            case TRUE:    return Boolean.TRUE;
+            case INT:     return values[node];
+            case BIGINT:  return bigInteger(node);
+            case FLOAT:   return Float.intBitsToFloat((int) values[node]);
+            case DOUBLE:  return Double.longBitsToDouble(values[node]);
+            case DATE:    return date(node);
+            case DATA:    return data(node);
+            case ASCII:
+            case UTF16:   return string(node);
+            case UID:     return new Uid(values[node]);
+        }
+
+        if (depth >= maxDepth)
+            throw new IllegalStateException("Objects are nested too deeply. The limit is " + maxDepth + " levels.");
+        int  count = sizes[node];
+        if (tags[node] == ARRAY)
+        {
+            Object[]  array = new Object[count];
+            for (int i = 0; i < count; i++) {
+                array[i] = toObject(child(node, i), depth + 1);
+            }
+            return array;
+        }
+        Dict  dict = new Dict(count);
+        for (int i = 0; i < count; i++) {
+            dict.put(string(child(node, i)), toObject(child(node, count + i), depth + 1));
+        }
+        return dict;
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.caverock.bplist;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of dictionary key strings that can be shared between decodes, set with
+ * {@link DecodeOptions#setKeyPool(KeyPool)}.
+ *
+ * When many similar plists are decoded, the same keys appear in every one of them. With a pool,
+ * each distinct key is only stored once, no matter how many decoded dicts use it. Keys are looked
+ * up from the raw bytes in the file, so a key that is already in the pool does not need a new
+ * String to be created at all.
+ *
+ * The pool holds at most a fixed number of keys. Once it is full, further new keys are decoded
+ * as normal, but are not added. Pools are thread-safe, and never remove keys.
+ */
+public class KeyPool
+{
+    public static final int  DEFAULT_MAX_SIZE = 4096;
+
+    // Longer keys than this are not pooled. They are unlikely to be repeated, and expensive to hash.
+    private static final int  MAX_KEY_LENGTH = 256;
+
+    // Open addressing hash table, kept at most half full so that probe sequences stay short.
+    // Slots go from null to a key exactly once, so lookups don't need any locking.
+    private final AtomicReferenceArray<String>  table;
+    private final int                           mask;
+    private final int                           maxSize;
+    private final AtomicInteger                 size = new AtomicInteger();
+
+
+    public KeyPool()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+
+    /**
+     * @param maxSize  the maximum number of keys that will be held in the pool
+     */
+    public KeyPool(int maxSize)
+    {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        if (maxSize > (1 << 29))
+            throw new IllegalArgumentException("maxSize is too large");
+        int  capacity = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+        this.table = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * The number of keys currently in the pool.
+     */
+    public int  size()
+    {
+        return size.get();
+    }
+
+
+    public int  getMaxSize()
+    {
+        return maxSize;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    // Get the string of 'length' chars starting at the reader's current position.
+    // If it is already in the pool, the pooled instance is returned without decoding the string.
+    String  intern(BytesReader in, int length, boolean utf16)
+    {
+        long  pos = in.position();
+        int   bytesPerChar = utf16 ? 2 : 1;
+        if (length > MAX_KEY_LENGTH || in.length() - pos < (long) length * bytesPerChar)
+            return readString(in, length, utf16);
+
+        // This is the same hash as String.hashCode() would give for the decoded string
+        int  hash = 0;
+        for (int i = 0; i < length; i++)
+        {
+            int  ch = charAt(in, pos, i, utf16);
+            if (ch >= 0x80 && !utf16)
+                return readString(in, length, utf16);  // Not valid ASCII, so it won't decode to these chars
+            hash = 31 * hash + ch;
+        }
+
+        int  idx = spread(hash) & mask;
+        for (String key; (key = table.get(idx)) != null; idx = (idx + 1) & mask)
+        {
+            if (key.hashCode() == hash && matches(key, in, pos, length, utf16))
+                return key;
+        }
+
+        // Not in the pool, so decode it and add it.
+        String  key = readString(in, length, utf16);
+        // Malformed UTF-16 is replaced when decoding. Don't pool those strings, since they won't match their bytes.
+        if (key.length() != length || !matches(key, in, pos, length, utf16))
+            return key;
+
+        while (size.get() < maxSize)
+        {
+            String  existing = table.get(idx);
+            if (existing == null)
+            {
+                if (table.compareAndSet(idx, null, key)) {
+                    size.incrementAndGet();
+                    return key;
+                }
+                continue;  // Another thread got this slot first. Look at what it put there.
+            }
+            if (existing.hashCode() == hash && existing.equals(key))
+                return existing;
+            idx = (idx + 1) & mask;
+        }
+        return key;
+    }
+
+
+    private static String  readString(BytesReader in, int length, boolean utf16)
+    {
+        return utf16 ? in.readUTF16StringBE(length) : in.readASCIIString(length);
+    }
+
+
+    private static int  charAt(BytesReader in, long pos, int i, boolean utf16)
+    {
+        if (utf16)
+            return ((in.getByte(pos + 2L * i) & 0xff) << 8) | (in.getByte(pos + 2L * i + 1) & 0xff);
+        return in.getByte(pos + i) & 0xff;
+    }
+
+
+    private static boolean  matches(String key, BytesReader in, long pos, int length, boolean utf16)
+    {
+        if (key.length() != length)
+            return false;
+        for (int i = 0; i < length; i++)
+        {
+            if (key.charAt(i) != charAt(in, pos, i, utf16))
+                return false;
+        }
+        return true;
+    }
+
+
+    // String hashes of similar keys often differ only in the low bits, so mix in the high bits too
+    private static int  spread(int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -0,0 +1,308 @@
+package com.caverock.bplist;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Resolves the Uid references in a plist written by NSKeyedArchiver.
+ *
+ * A keyed archive holds all of its objects in a flat {@code $objects} array, and refers to them
+ * with Uids. This class replaces the Uids with the objects they refer to:
+ *
+ * <ul>
+ *   <li>NSArray, NSSet and NSOrderedSet (and their mutable versions) become {@code Object[]}</li>
+ *   <li>NSDictionary and NSMutableDictionary become a Dict</li>
+ *   <li>NSString, NSData and NSDate become a String, Data and Instant</li>
+ *   <li>NSNull and {@code $null} become null</li>
+ *   <li>Objects of any other class become a Dict of their fields, with the
+ *       {@code $class} field replaced by the class name</li>
+ * </ul>
+ *
+ * Each object is resolved at most once, so objects that are referred to from more than one place
+ * are shared, and reference cycles produce cyclic results rather than looping forever.
+ *
+ * Objects are only resolved when they are first asked for. {@link #resolve(Dict)} resolves
+ * everything reachable from {@code $top} in one go. Instances of this class are not thread-safe.
+ */
+public class KeyedArchive
+{
+    // What still needs to be done to an object. NEW objects haven't been looked at yet.
+    // Objects in one of the FILL states have had their (empty) result created, but their contents
+    // still need to be resolved.
+    private static final byte  NEW = 0;
+    private static final byte  DONE = 1;
+    private static final byte  FILL_ARRAY = 2;        // NSArray etc.
+    private static final byte  FILL_DICTIONARY = 3;   // NSDictionary
+    private static final byte  FILL_OBJECT = 4;       // Any other archived object
+    private static final byte  FILL_RAW_ARRAY = 5;    // An array stored directly in $objects
+    private static final byte  FILL_RAW_DICT = 6;     // A dict with no $class stored directly in $objects
+
+    private final Dict      top;
+    private final Object[]  objects;      // the archive's $objects
+    private final Object[]  resolved;     // the result for each entry in $objects
+    private final byte[]    states;       // the state of each entry in $objects
+    private final String[]  classNames;   // the class name, if the entry is a class description
+
+    // Objects waiting to have their contents resolved
+    private int[]  pending = new int[16];
+    private int    pendingCount = 0;
+
+
+    /**
+     * @param archive  a decoded NSKeyedArchiver plist
+     * @throws IllegalArgumentException if this isn't a keyed archive
+     */
+    public KeyedArchive(Dict archive)
+    {
+        if (!(archive.get("$objects") instanceof Object[]) || !(archive.get("$top") instanceof Dict))
+            throw new IllegalArgumentException("Not an NSKeyedArchiver archive");
+        this.top = archive.getDict("$top");
+        this.objects = archive.getObjectArray("$objects");
+        this.resolved = new Object[objects.length];
+        this.states = new byte[objects.length];
+        this.classNames = new String[objects.length];
+    }
+
+
+    /**
+     * Resolve all the objects in an archive.
+     *
+     * @return the {@code $top} dict of the archive, with its values resolved
+     */
+    public static Result<Dict>  resolve(Dict archive)
+    {
+        try
+        {
+            return new Result<>(new KeyedArchive(archive).getTop());
+        }
+        catch (RuntimeException e)
+        {
+            return new Result<>("Unable to resolve archive: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Returns the {@code $top} dict of the archive, with its values resolved.
+     */
+    public Dict  getTop()
+    {
+        Dict  result = new Dict(top.size());
+        for (Map.Entry<String,Object> entry: top.entrySet()) {
+            result.put(entry.getKey(), reference(entry.getValue()));
+        }
+        drain();
+        return result;
+    }
+
+
+    /**
+     * Returns the resolved value of one entry of {@code $top}, eg. "root".
+     * Only the objects reachable from that entry are resolved.
+     */
+    public Object  getTop(String key)
+    {
+        Object  result = reference(top.get(key));
+        drain();
+        return result;
+    }
+
+
+    /**
+     * Returns the resolved object that a Uid refers to.
+     */
+    public Object  getObject(Uid uid)
+    {
+        Object  result = reference(uid);
+        drain();
+        return result;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    // Resolve a value that may be, or contain, Uid references.
+    // Objects that need their contents resolving are left on the pending list.
+    private Object  reference(Object value)
+    {
+        if (value instanceof Uid)
+            return start(index((Uid) value));
+        if (value instanceof Object[])
+        {
+            Object[]  array = (Object[]) value;
+            Object[]  result = new Object[array.length];
+            for (int i = 0; i < array.length; i++) {
+                result[i] = reference(array[i]);
+            }
+            return result;
+        }
+        return value;
+    }
+
+
+    // Get the result for an entry in $objects, creating it if this is the first time it has been seen
+    private Object  start(int index)
+    {
+        if (index < 0 || index >= objects.length)
+            throw new IllegalArgumentException("Invalid Uid: " + index);
+        if (states[index] != NEW)
+            return resolved[index];
+
+        Object  obj = objects[index];
+        Object  result = obj;
+        byte    state = DONE;
+        if ("$null".equals(obj))
+            result = null;
+        else if (obj instanceof Object[])
+        {
+            result = new Object[((Object[]) obj).length];
+            state = FILL_RAW_ARRAY;
+        }
+        else if (obj instanceof Dict)
+        {
+            Dict    dict = (Dict) obj;
+            Object  cls = dict.get("$class");
+            String  className = (cls instanceof Uid) ? className(index((Uid) cls)) : null;
+            if (className == null)
+            {
+                result = new Dict(dict.size());
+                state = FILL_RAW_DICT;
+            }
+            else switch (className)
+            {
+                case "NSArray", "NSMutableArray", "NSSet", "NSMutableSet", "NSOrderedSet", "NSMutableOrderedSet" -> {
+                    result = new Object[uidArray(dict, "NS.objects").length];
+                    state = FILL_ARRAY;
+                }
+                case "NSDictionary", "NSMutableDictionary" -> {
+                    result = new Dict(uidArray(dict, "NS.keys").length);
+                    state = FILL_DICTIONARY;
+                }
+                case "NSString", "NSMutableString" -> result = leaf(dict.get("NS.string"));
+                case "NSData", "NSMutableData" -> result = leaf(dict.get("NS.data"));
+                case "NSDate" -> {
+                    Object  time = leaf(dict.get("NS.time"));
+                    if (!(time instanceof Number))
+                        throw new IllegalArgumentException("Invalid NSDate");
+                    result = Instant.ofEpochMilli(Decoder.APPLE_DATE_EPOCH + (long) (1000 * ((Number) time).doubleValue()));
+                }
+                case "NSNull" -> result = null;
+                default -> {
+                    result = new Dict(dict.size());
+                    state = FILL_OBJECT;
+                }
+            }
+        }
+
+        resolved[index] = result;
+        states[index] = state;
+        if (state != DONE)
+        {
+            if (pendingCount == pending.length)
+                pending = Arrays.copyOf(pending, pendingCount * 2);
+            pending[pendingCount++] = index;
+        }
+        return result;
+    }
+
+
+    // Fill in the contents of pending objects, until there are none left.
+    // Filling one object may add more to the list.
+    private void  drain()
+    {
+        while (pendingCount > 0)
+        {
+            int  index = pending[--pendingCount];
+            Object  obj = objects[index];
+            Object  result = resolved[index];
+            switch (states[index])
+            {
+                case FILL_ARRAY -> {
+                    Object[]  refs = uidArray((Dict) obj, "NS.objects");
+                    for (int i = 0; i < refs.length; i++) {
+                        ((Object[]) result)[i] = reference(refs[i]);
+                    }
+                }
+                case FILL_DICTIONARY -> {
+                    Object[]  keys = uidArray((Dict) obj, "NS.keys");
+                    Object[]  values = uidArray((Dict) obj, "NS.objects");
+                    if (keys.length != values.length)
+                        throw new IllegalArgumentException("NSDictionary has different numbers of keys and values");
+                    for (int i = 0; i < keys.length; i++) {
+                        ((Dict) result).put(String.valueOf(reference(keys[i])), reference(values[i]));
+                    }
+                }
+                case FILL_OBJECT, FILL_RAW_DICT -> {
+                    for (Map.Entry<String,Object> entry: ((Dict) obj).entrySet())
+                    {
+                        Object  value = entry.getValue();
+                        if (entry.getKey().equals("$class") && value instanceof Uid)
+                            ((Dict) result).put("$class", className(index((Uid) value)));
+                        else
+                            ((Dict) result).put(entry.getKey(), reference(value));
+                    }
+                }
+                case FILL_RAW_ARRAY -> {
+                    Object[]  array = (Object[]) obj;
+                    for (int i = 0; i < array.length; i++) {
+                        ((Object[]) result)[i] = reference(array[i]);
+                    }
+                }
+            }
+            states[index] = DONE;
+        }
+    }
+
+
+    // The index in $objects that a Uid refers to. The uid is checked before it is narrowed
+    // to an int, so that a large uid can't wrap round to a valid index.
+    private int  index(Uid uid)
+    {
+        long  index = uid.getUid();
+        if (index < 0 || index >= objects.length)
+            throw new IllegalArgumentException("Invalid Uid: " + index);
+        return (int) index;
+    }
+
+
+    // Get the class name from the class description at this index
+    private String  className(int index)
+    {
+        if (index < 0 || index >= objects.length)
+            throw new IllegalArgumentException("Invalid Uid: " + index);
+        String  name = classNames[index];
+        if (name == null)
+        {
+            Object  cls = objects[index];
+            if (!(cls instanceof Dict) || !(((Dict) cls).get("$classname") instanceof String))
+                throw new IllegalArgumentException("Invalid class description at " + index);
+            name = ((Dict) cls).getString("$classname");
+            classNames[index] = name;
+        }
+        return name;
+    }
+
+
+    // The value of a simple field, such as NS.string. Archivers may store these inline or by reference.
+    private Object  leaf(Object value)
+    {
+        if (value instanceof Uid)
+        {
+            int  index = index((Uid) value);
+            return "$null".equals(objects[index]) ? null : objects[index];
+        }
+        return value;
+    }
+
+
+    private static Object[]  uidArray(Dict dict, String key)
+    {
+        Object  value = dict.get(key);
+        if (!(value instanceof Object[]))
+            throw new IllegalArgumentException("Missing " + key);
+        return (Object[]) value;
+    }
+
+}
@@ -0,0 +1,263 @@
+package com.caverock.bplist;
+
+import java.io.ObjectStreamException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/*
+ * A Dict returned when decoding with DecodeOptions.setLazy(true).
+ *
+ * Keys are decoded up front, but each value is held as a reference into the document's
+ * object table, and is only decoded the first time it is accessed.  The decoded value
+ * then replaces the reference.
+ *
+ * Any operation that needs to see all of the values (iteration, equals(), etc.) will first
+ * decode all remaining values.
+ *
+ * put() returns null, rather than the old value, when it replaces a value that hasn't been decoded
+ * yet. There is no point decoding a value just to throw it away.
+ *
+ * A LazyDict is serialized as a plain Dict, with all of its values decoded.
+ *
+ * Like the Dict it extends, this class is not thread-safe. Note that this also applies to
+ * reads, since decoding a value moves the position of the shared document reader.
+ */
+class LazyDict extends Dict
+{
+    private static final long  serialVersionUID = 1L;
+
+    // Placeholder for a value that has not been decoded yet
+    private static final class Ref
+    {
+        final int  objectIndex;
+
+        Ref(int objectIndex)
+        {
+            this.objectIndex = objectIndex;
+        }
+    }
+
+
+    private transient Decoder  decoder;
+    private int                unresolved = 0;
+
+
+    LazyDict(Decoder decoder, int initialCapacity)
+    {
+        super(initialCapacity);
+        this.decoder = decoder;
+    }
+
+
+    // Called by the Decoder when building this dict
+    void  putRef(String key, int objectIndex)
+    {
+        if (!(super.put(key, new Ref(objectIndex)) instanceof Ref))
+            unresolved++;
+    }
+
+
+    // Decode the value for the given key if it hasn't been decoded already
+    private Object  resolve(Object key, Object value)
+    {
+        if (!(value instanceof Ref))
+            return value;
+        Object  decoded = decoder.getObject(((Ref) value).objectIndex);
+        // Replacing the value of an existing key doesn't count as a structural
+        // modification, so this is safe even while iterating over keySet().
+        super.put((String) key, decoded);
+        unresolved--;
+        return decoded;
+    }
+
+
+    private void  resolveAll()
+    {
+        if (unresolved == 0)
+            return;
+        for (Map.Entry<String,Object> entry: super.entrySet()) {
+            resolve(entry.getKey(), entry.getValue());
+        }
+        // Everything is decoded now, so we no longer need to hold on to the document
+        decoder = null;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    @Override
+    public Object  get(Object key)
+    {
+        return resolve(key, super.get(key));
+    }
+
+    @Override
+    public Object  getOrDefault(Object key, Object defaultValue)
+    {
+        return containsKey(key) ? get(key) : defaultValue;
+    }
+
+    @Override
+    public Object  put(String key, Object value)
+    {
+        Object  old = super.put(key, value);
+        if (old instanceof Ref) {
+            unresolved--;
+            return null;
+        }
+        return old;
+    }
+
+    @Override
+    public Object  remove(Object key)
+    {
+        Object  value = get(key);
+        super.remove(key);
+        return value;
+    }
+
+    @Override
+    public boolean  remove(Object key, Object value)
+    {
+        get(key);
+        return super.remove(key, value);
+    }
+
+    @Override
+    public void  clear()
+    {
+        super.clear();
+        unresolved = 0;
+        decoder = null;
+    }
+
+    @Override
+    public boolean  containsValue(Object value)
+    {
+        resolveAll();
+        return super.containsValue(value);
+    }
+
+    @Override
+    public Set<Map.Entry<String,Object>>  entrySet()
+    {
+        resolveAll();
+        return super.entrySet();
+    }
+
+    @Override
+    public Collection<Object>  values()
+    {
+        resolveAll();
+        return super.values();
+    }
+
+    @Override
+    public void  forEach(BiConsumer<? super String, ? super Object> action)
+    {
+        resolveAll();
+        super.forEach(action);
+    }
+
+    @Override
+    public void  replaceAll(BiFunction<? super String, ? super Object, ?> function)
+    {
+        resolveAll();
+        super.replaceAll(function);
+    }
+
+    @Override
+    public Object  putIfAbsent(String key, Object value)
+    {
+        get(key);
+        return super.putIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean  replace(String key, Object oldValue, Object newValue)
+    {
+        get(key);
+        return super.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public Object  replace(String key, Object value)
+    {
+        get(key);
+        return super.replace(key, value);
+    }
+
+    @Override
+    public Object  computeIfAbsent(String key, Function<? super String, ?> mappingFunction)
+    {
+        get(key);
+        return super.computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public Object  computeIfPresent(String key, BiFunction<? super String, ? super Object, ?> remappingFunction)
+    {
+        get(key);
+        return super.computeIfPresent(key, remappingFunction);
+    }
+
+    @Override
+    public Object  compute(String key, BiFunction<? super String, ? super Object, ?> remappingFunction)
+    {
+        get(key);
+        return super.compute(key, remappingFunction);
+    }
+
+    @Override
+    public Object  merge(String key, Object value, BiFunction<? super Object, ? super Object, ?> remappingFunction)
+    {
+        get(key);
+        return super.merge(key, value, remappingFunction);
+    }
+
+    @Override
+    public Object  clone()
+    {
+        resolveAll();
+        return super.clone();
+    }
+
+    @Override
+    public boolean  equals(Object o)
+    {
+        resolveAll();
+        return super.equals(o);
+    }
+
+    @Override
+    public int  hashCode()
+    {
+        resolveAll();
+        return super.hashCode();
+    }
+
+    @Override
+    public String  toString()
+    {
+        resolveAll();
+        return super.toString();
+    }
+
+
+    // The decoder can't be serialized, so write a plain Dict in our place
+    private Object  writeReplace() throws ObjectStreamException
+    {
+        resolveAll();
+        Dict  dict = new Dict(size());
+        for (Map.Entry<String,Object> entry: super.entrySet()) {
+            dict.put(entry.getKey(), entry.getValue());
+        }
+        return dict;
+    }
+
+}
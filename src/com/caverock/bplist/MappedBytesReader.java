@@ -0,0 +1,187 @@
+package com.caverock.bplist;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A BytesReader that reads from a memory-mapped file.
+ *
+ * The file contents are not copied onto the heap, and there is no 2GB size limit. Since a single
+ * MappedByteBuffer can only cover 2GB, the file is mapped as a series of chunks. Reads that
+ * straddle two chunks fall back to the byte-at-a-time implementations in BytesReader.
+ *
+ * The mapping stays valid until the reader is garbage collected.
+ */
+public class MappedBytesReader extends BytesReader
+{
+    private static final int   CHUNK_SHIFT = 30;  // 1GB chunks
+    private static final long  CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long  CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final MappedByteBuffer[]  chunks;
+    private final long                length;
+    private long                      pos = 0;
+
+
+    public MappedBytesReader(Path path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            this.length = channel.size();
+            int  numChunks = (int) ((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+            this.chunks = new MappedByteBuffer[numChunks];
+            for (int i = 0; i < numChunks; i++)
+            {
+                long  start = (long) i << CHUNK_SHIFT;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, length - start));
+            }
+        }
+    }
+
+
+    private MappedBytesReader(MappedBytesReader other)
+    {
+        this.chunks = other.chunks;
+        this.length = other.length;
+        this.pos = other.pos;
+    }
+
+
+    @Override
+    public BytesReader  duplicate()
+    {
+        // All our reads from the mapped buffers are absolute, so the buffers can be shared
+        return new MappedBytesReader(this);
+    }
+
+
+    @Override
+    public long  length()
+    {
+        return length;
+    }
+
+
+    @Override
+    public long  position()
+    {
+        return pos;
+    }
+
+
+    @Override
+    public boolean  seek(long nextPos)
+    {
+        if (nextPos < 0 || nextPos > length)
+            return false;
+        this.pos = nextPos;
+        return true;
+    }
+
+
+    @Override
+    protected byte  getByte(long index)
+    {
+        return chunks[(int) (index >>> CHUNK_SHIFT)].get((int) (index & CHUNK_MASK));
+    }
+
+
+    @Override
+    protected void  getBytes(long index, byte[] dst, int offset, int length)
+    {
+        while (length > 0)
+        {
+            int  chunkPos = (int) (index & CHUNK_MASK);
+            int  n = (int) Math.min(length, CHUNK_SIZE - chunkPos);
+            chunks[(int) (index >>> CHUNK_SHIFT)].get(chunkPos, dst, offset, n);
+            index += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+
+    // Returns the chunk holding the 'count' bytes at the current position, or null if
+    // they are split across two chunks (or go past the end of the file).
+    private MappedByteBuffer  chunkFor(int count)
+    {
+        int  chunkPos = (int) (pos & CHUNK_MASK);
+        MappedByteBuffer  chunk = (pos < length) ? chunks[(int) (pos >>> CHUNK_SHIFT)] : null;
+        return (chunk != null && chunkPos + count <= chunk.limit()) ? chunk : null;
+    }
+
+
+    @Override
+    public Data  readData(int length)
+    {
+        MappedByteBuffer  chunk = chunkFor(length);
+        if (chunk == null)
+            return super.readData(length);
+        int  chunkPos = (int) (pos & CHUNK_MASK);
+        Data  result = new Data(chunk.slice(chunkPos, length));
+        pos += length;
+        return result;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Big-endian reads straight from the buffer. MappedByteBuffers are big-endian by default.
+
+
+    @Override
+    public int readUnsignedShortBE()
+    {
+        MappedByteBuffer  chunk = chunkFor(2);
+        if (chunk == null)
+            return super.readUnsignedShortBE();
+        int  result = chunk.getShort((int) (pos & CHUNK_MASK)) & 0xffff;
+        pos += 2;
+        return result;
+    }
+
+
+    @Override
+    public int readIntBE()
+    {
+        MappedByteBuffer  chunk = chunkFor(4);
+        if (chunk == null)
+            return super.readIntBE();
+        int  result = chunk.getInt((int) (pos & CHUNK_MASK));
+        pos += 4;
+        return result;
+    }
+
+
+    @Override
+    protected long  getNumberBE(long index, int byteCount)
+    {
+        int  chunkPos = (int) (index & CHUNK_MASK);
+        MappedByteBuffer  chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+        if (chunkPos + byteCount > chunk.limit())
+            return super.getNumberBE(index, byteCount);
+        switch (byteCount)
+        {
+            case 1:  return chunk.get(chunkPos) & 0xff;
+            case 2:  return chunk.getShort(chunkPos) & 0xffff;
+            case 4:  return chunk.getInt(chunkPos) & 0xffffffffL;
+            case 8:  return chunk.getLong(chunkPos);
+            default: throw illegalNumberSize(byteCount);
+        }
+    }
+
+
+    @Override
+    public long readLongBE()
+    {
+        MappedByteBuffer  chunk = chunkFor(8);
+        if (chunk == null)
+            return super.readLongBE();
+        long  result = chunk.getLong((int) (pos & CHUNK_MASK));
+        pos += 8;
+        return result;
+    }
+
+}
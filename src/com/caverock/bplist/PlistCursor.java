@@ -0,0 +1,288 @@
+package com.caverock.bplist;
+
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Navigates a {@link FlatPlist}.
+ *
+ * A cursor is positioned at one object in the document. It starts at the root, and can be
+ * moved into the elements of arrays and dicts with the {@code enter()} methods, and back out
+ * again with {@link #exit()}. Values are read from the current object with the {@code get}
+ * methods, which throw an IllegalStateException if the object is of the wrong type.
+ *
+ * Cursors are not thread-safe. Use a separate cursor for each thread.
+ */
+public class PlistCursor
+{
+    public enum Type
+    {
+        NULL, BOOLEAN, INTEGER, REAL, DATE, DATA, STRING, UID, ARRAY, DICT
+    }
+
+
+    private final FlatPlist  doc;
+    private int              node;
+    private int[]            parents = new int[8];   // the objects we have entered, outermost first
+    private int              depth = 0;
+
+
+    PlistCursor(FlatPlist doc)
+    {
+        this.doc = doc;
+        this.node = doc.root();
+    }
+
+
+    /**
+     * Returns a new cursor at the same position as this one.
+     */
+    public PlistCursor  copy()
+    {
+        PlistCursor  copy = new PlistCursor(doc);
+        copy.node = node;
+        copy.parents = Arrays.copyOf(parents, parents.length);
+        copy.depth = depth;
+        return copy;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Navigation
+
+
+    /**
+     * Move into the element at this index of the current array, or to the value of the
+     * entry at this index of the current dict.
+     *
+     * @return false, without moving, if the current object isn't an array or dict, or the index is out of range
+     */
+    public boolean  enter(int index)
+    {
+        byte  tag = doc.tag(node);
+        if ((tag != FlatPlist.ARRAY && tag != FlatPlist.DICT) || index < 0 || index >= doc.size(node))
+            return false;
+        moveTo(doc.child(node, (tag == FlatPlist.DICT) ? doc.size(node) + index : index));
+        return true;
+    }
+
+
+    /**
+     * Move to the value for this key in the current dict.
+     *
+     * @return false, without moving, if the current object isn't a dict, or doesn't contain the key
+     */
+    public boolean  enter(String key)
+    {
+        if (doc.tag(node) != FlatPlist.DICT)
+            return false;
+        int  count = doc.size(node);
+        for (int i = 0; i < count; i++)
+        {
+            if (doc.stringEquals(doc.child(node, i), key)) {
+                moveTo(doc.child(node, count + i));
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Follow a path down from the current object. See {@link PlistPath} for the path syntax.
+     *
+     * @return false, without moving, if there is no object at the end of the path
+     */
+    public boolean  enter(PlistPath path)
+    {
+        int  savedNode = node;
+        int  savedDepth = depth;
+        for (int step = 0; step < path.length(); step++)
+        {
+            String   key = path.key(step);
+            boolean  found;
+            if (key == null)
+                found = (doc.tag(node) == FlatPlist.ARRAY) && enter(path.index(step));
+            else if (doc.tag(node) == FlatPlist.ARRAY)
+                found = enter(PlistPath.parseIndex(key));
+            else
+                found = enter(key);
+            if (!found) {
+                node = savedNode;
+                depth = savedDepth;
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Move back out to the array or dict containing the current object.
+     *
+     * @return false if the cursor is already at the root
+     */
+    public boolean  exit()
+    {
+        if (depth == 0)
+            return false;
+        node = parents[--depth];
+        return true;
+    }
+
+
+    /**
+     * Move back to the root object.
+     */
+    public void  root()
+    {
+        node = (depth > 0) ? parents[0] : node;
+        depth = 0;
+    }
+
+
+    private void  moveTo(int child)
+    {
+        if (depth == parents.length)
+            parents = Arrays.copyOf(parents, depth * 2);
+        parents[depth++] = node;
+        node = child;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // The current object
+
+
+    public Type  getType()
+    {
+        switch (doc.tag(node))
+        {
+            case FlatPlist.NULL:    return Type.NULL;
+            case FlatPlist.FALSE:
+            case FlatPlist.TRUE:    return Type.BOOLEAN;
+            case FlatPlist.INT:
+            case FlatPlist.BIGINT:  return Type.INTEGER;
+            case FlatPlist.FLOAT:
+            case FlatPlist.DOUBLE:  return Type.REAL;
+            case FlatPlist.DATE:    return Type.DATE;
+            case FlatPlist.DATA:    return Type.DATA;
+            case FlatPlist.UID:     return Type.UID;
+            case FlatPlist.ARRAY:   return Type.ARRAY;
+            case FlatPlist.DICT:    return Type.DICT;
+            default:                return Type.STRING;
+        }
+    }
+
+
+    public boolean  isNull()
+    {
+        return doc.tag(node) == FlatPlist.NULL;
+    }
+
+
+    /**
+     * The number of elements in the current array, or entries in the current dict.
+     */
+    public int  size()
+    {
+        requireType(Type.ARRAY, Type.DICT);
+        return doc.size(node);
+    }
+
+
+    /**
+     * The key of the entry at this index of the current dict.
+     */
+    public String  key(int index)
+    {
+        requireType(Type.DICT, Type.DICT);
+        if (index < 0 || index >= doc.size(node))
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for dict of size " + doc.size(node));
+        return doc.string(doc.child(node, index));
+    }
+
+
+    public boolean  getBoolean()
+    {
+        requireType(Type.BOOLEAN, Type.BOOLEAN);
+        return doc.tag(node) == FlatPlist.TRUE;
+    }
+
+
+    /**
+     * The value of the current integer. 128 bit integers are truncated to their low 64 bits.
+     */
+    public long  getLong()
+    {
+        requireType(Type.INTEGER, Type.INTEGER);
+        return (doc.tag(node) == FlatPlist.BIGINT) ? doc.bigInteger(node).longValue() : doc.value(node);
+    }
+
+
+    public BigInteger  getBigInteger()
+    {
+        requireType(Type.INTEGER, Type.INTEGER);
+        return (doc.tag(node) == FlatPlist.BIGINT) ? doc.bigInteger(node) : BigInteger.valueOf(doc.value(node));
+    }
+
+
+    public double  getDouble()
+    {
+        requireType(Type.REAL, Type.REAL);
+        if (doc.tag(node) == FlatPlist.FLOAT)
+            return Float.intBitsToFloat((int) doc.value(node));
+        return Double.longBitsToDouble(doc.value(node));
+    }
+
+
+    public Instant  getDate()
+    {
+        requireType(Type.DATE, Type.DATE);
+        return doc.date(node);
+    }
+
+
+    /**
+     * The current data object. The returned Data is a view of the document's storage, not a copy.
+     */
+    public Data  getData()
+    {
+        requireType(Type.DATA, Type.DATA);
+        return doc.data(node);
+    }
+
+
+    public String  getString()
+    {
+        requireType(Type.STRING, Type.STRING);
+        return doc.string(node);
+    }
+
+
+    public Uid  getUid()
+    {
+        requireType(Type.UID, Type.UID);
+        return new Uid(doc.value(node));
+    }
+
+
+    /**
+     * Convert the current object, and everything below it, to the same form that
+     * {@link BPList#decode(java.io.File)} would return.
+     */
+    public Object  toObject()
+    {
+        return doc.toObject(node, 0);
+    }
+
+
+    private void  requireType(Type type1, Type type2)
+    {
+        Type  type = getType();
+        if (type != type1 && type != type2)
+            throw new IllegalStateException("Current object is a " + type + ", not a " + type1);
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.caverock.bplist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of changes to make to a bplist file with {@link BPList#update(java.nio.file.Path, PlistEdits)}.
+ *
+ * Each change is addressed by a {@link PlistPath}, and the changes are made in the order they were
+ * added. So a later change can refer to a key added by an earlier one. The arrays and dicts along
+ * each path must already exist in the file. New values can be of any type that
+ * {@link BPList#encode(Dict, java.io.File)} accepts, but a path can't lead inside a new value.
+ */
+public final class PlistEdits
+{
+    // Stands in for the value of a removal
+    static final Object  REMOVE = new Object();
+
+    private final List<PlistPath>  paths = new ArrayList<>();
+    private final List<Object>     values = new ArrayList<>();
+
+
+    public PlistEdits  set(String path, Object value)
+    {
+        return set(PlistPath.compile(path), value);
+    }
+
+
+    /**
+     * Set the value at a path. If the last step of the path is a dict key, the key is added to the
+     * dict if it isn't already there. If it is an array index, it must be the index of an existing
+     * element, or the length of the array to add an element to the end.
+     */
+    public PlistEdits  set(PlistPath path, Object value)
+    {
+        paths.add(path);
+        values.add(value);
+        return this;
+    }
+
+
+    public PlistEdits  remove(String path)
+    {
+        return remove(PlistPath.compile(path));
+    }
+
+
+    /**
+     * Remove a key from a dict, or an element from an array. Later elements of the array move down.
+     */
+    public PlistEdits  remove(PlistPath path)
+    {
+        paths.add(path);
+        values.add(REMOVE);
+        return this;
+    }
+
+
+    public int  size()
+    {
+        return paths.size();
+    }
+
+
+    public boolean  isEmpty()
+    {
+        return paths.isEmpty();
+    }
+
+
+    PlistPath  path(int i)
+    {
+        return paths.get(i);
+    }
+
+
+    // The new value, or REMOVE
+    Object  value(int i)
+    {
+        return values.get(i);
+    }
+
+}
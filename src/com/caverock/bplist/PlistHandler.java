@@ -0,0 +1,43 @@
+package com.caverock.bplist;
+
+/**
+ * Receives the contents of a bplist from {@link BPList#parse(java.io.File, PlistHandler)}.
+ *
+ * Objects are reported depth first, starting with the root object.  Dictionaries produce a
+ * {@code startDict()}, then a {@code key()} followed by the events for its value for each entry,
+ * then an {@code endDict()}.  Arrays (and sets) produce a {@code startArray()}, the events for
+ * each element, and then an {@code endArray()}.  All other objects are reported with
+ * {@code value()}, using the same types as {@link BPList#decode(java.io.File)} returns.
+ *
+ * The sizes passed to {@code startDict()} and {@code startArray()} are -1 when they are not
+ * known in advance, as when reading XML plists with {@link XMLPList#parse(java.io.File, PlistHandler)}.
+ *
+ * All methods have empty default implementations, so a handler only needs to implement the
+ * events it is interested in.
+ */
+public interface PlistHandler
+{
+    default void  startDict(int size)
+    {
+    }
+
+    default void  key(String key)
+    {
+    }
+
+    default void  endDict()
+    {
+    }
+
+    default void  startArray(int size)
+    {
+    }
+
+    default void  endArray()
+    {
+    }
+
+    default void  value(Object value)
+    {
+    }
+}
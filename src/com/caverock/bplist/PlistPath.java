@@ -0,0 +1,141 @@
+package com.caverock.bplist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled path to a value inside a plist, for use with {@link BPList#extract(java.io.File, PlistPath)}.
+ *
+ * Paths are made up of dictionary keys separated by dots, each optionally followed by one or more
+ * array indexes in square brackets. For example {@code "Tracks.1234.Location"} or {@code "a.b[3].c"}.
+ * A key that is all digits also works as an index if it turns out to refer to an array.
+ * A '.', '[' or '\' that is part of a key can be escaped with a backslash.
+ *
+ * Compiled paths are immutable, and can be reused for any number of files.
+ */
+public final class PlistPath
+{
+    private final String    path;
+    private final String[]  keys;     // dict key for each step, or null for an index step
+    private final int[]     indexes;  // array index for each step, or -1 for a key step
+
+
+    private PlistPath(String path, List<String> keys, List<Integer> indexes)
+    {
+        this.path = path;
+        this.keys = keys.toArray(new String[0]);
+        this.indexes = new int[indexes.size()];
+        for (int i = 0; i < this.indexes.length; i++) {
+            this.indexes[i] = indexes.get(i);
+        }
+    }
+
+
+    /**
+     * Parse a path string.
+     *
+     * @throws IllegalArgumentException if the path is not valid
+     */
+    public static PlistPath  compile(String path)
+    {
+        if (path == null || path.isEmpty())
+            throw new IllegalArgumentException("Path is empty");
+
+        List<String>   keys = new ArrayList<>();
+        List<Integer>  indexes = new ArrayList<>();
+        int  pos = 0;
+        int  len = path.length();
+        while (true)
+        {
+            // Key
+            StringBuilder  key = new StringBuilder();
+            while (pos < len && path.charAt(pos) != '.' && path.charAt(pos) != '[')
+            {
+                char  ch = path.charAt(pos++);
+                if (ch == '\\') {
+                    if (pos == len)
+                        throw badPath(path, "trailing backslash");
+                    ch = path.charAt(pos++);
+                }
+                key.append(ch);
+            }
+            if (key.length() == 0)
+                throw badPath(path, "empty key at position " + pos);
+            keys.add(key.toString());
+            indexes.add(-1);
+
+            // Any indexes
+            while (pos < len && path.charAt(pos) == '[')
+            {
+                int  close = path.indexOf(']', pos);
+                if (close < 0)
+                    throw badPath(path, "missing ']'");
+                int  index = parseIndex(path.substring(pos + 1, close));
+                if (index < 0)
+                    throw badPath(path, "bad index at position " + pos);
+                keys.add(null);
+                indexes.add(index);
+                pos = close + 1;
+            }
+
+            if (pos == len)
+                break;
+            if (path.charAt(pos) != '.')
+                throw badPath(path, "expected '.' at position " + pos);
+            pos++;
+        }
+        return new PlistPath(path, keys, indexes);
+    }
+
+
+    // Parse a non-negative decimal index. Returns -1 if the string isn't one.
+    static int  parseIndex(String str)
+    {
+        if (str.isEmpty() || str.length() > 10)
+            return -1;
+        long  value = 0;
+        for (int i = 0; i < str.length(); i++)
+        {
+            char  ch = str.charAt(i);
+            if (ch < '0' || ch > '9')
+                return -1;
+            value = value * 10 + (ch - '0');
+        }
+        return (value > Integer.MAX_VALUE) ? -1 : (int) value;
+    }
+
+
+    private static IllegalArgumentException  badPath(String path, String reason)
+    {
+        return new IllegalArgumentException("Invalid path \"" + path + "\": " + reason);
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    int  length()
+    {
+        return keys.length;
+    }
+
+    // The dict key for this step, or null if the step is an array index
+    String  key(int step)
+    {
+        return keys[step];
+    }
+
+    // The array index for this step, or -1 if the step is a dict key
+    int  index(int step)
+    {
+        return indexes[step];
+    }
+
+
+    @Override
+    public String  toString()
+    {
+        return path;
+    }
+
+}
@@ -0,0 +1,272 @@
+package com.caverock.bplist;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Applies a list of edits to a bplist document.
+ *
+ * Only the arrays and dicts on the path to each edited value are read. Each is copied with its
+ * refs changed, and appended to the document along with the new values, a new offset table and a
+ * new trailer. Everything else stays where it is, and the new offset table points at it. The
+ * replaced containers and the old offset table and trailer are left behind as unused bytes.
+ *
+ * If the document's refs are too small to refer to the new objects, the edited document has to
+ * be written out again as a whole. materialize() decodes it, with the edits applied, for that.
+ */
+final class Updater
+{
+    private final Decoder  decoder;
+    private final Node     root;
+
+    // The encoder holding the appended objects, and the new top object's index. Set by canAppend().
+    private Encoder  encoder;
+    private int      topObject;
+
+
+    // An array or dict on the path to an edited value, with the edits applied to its refs.
+    // Each entry of 'values', and of 'keys' for dicts, is either an Integer ref to an object already
+    // in the document, or a replacement: a Node for an edited container, a NewValue, or a new String key.
+    private static final class Node
+    {
+        final boolean       isDict;
+        final List<Object>  keys;    // null for arrays
+        final List<Object>  values;
+
+        Node(boolean isDict, int count)
+        {
+            this.isDict = isDict;
+            this.keys = isDict ? new ArrayList<>(count + 1) : null;
+            this.values = new ArrayList<>(count + 1);
+        }
+    }
+
+
+    // A value that isn't in the document yet. Wrapped so that it can't be mistaken for a ref.
+    private static final class NewValue
+    {
+        final Object  value;
+
+        NewValue(Object value)
+        {
+            this.value = value;
+        }
+    }
+
+
+    Updater(Decoder decoder, PlistEdits edits)
+    {
+        this.decoder = decoder;
+        this.root = load(decoder.topObject);
+        for (int i = 0; i < edits.size(); i++) {
+            apply(edits.path(i), edits.value(i));
+        }
+    }
+
+
+    // Read the refs of an array or dict from the document
+    private Node  load(int objectIndex)
+    {
+        boolean  isDict = decoder.markerType(objectIndex) == 13;
+        int[]    refs = decoder.containerRefs(objectIndex);
+        int      count = isDict ? refs.length / 2 : refs.length;
+        Node     node = new Node(isDict, count);
+        for (int i = 0; i < count; i++)
+        {
+            if (isDict) {
+                node.keys.add(refs[i]);
+                node.values.add(refs[count + i]);
+            } else {
+                node.values.add(refs[i]);
+            }
+        }
+        return node;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    private void  apply(PlistPath path, Object value)
+    {
+        Node  node = root;
+        int   last = path.length() - 1;
+        for (int step = 0; step < last; step++)
+        {
+            int  pos = find(node, path, step);
+            if (pos < 0)
+                throw new RuntimeException("No value at path: " + path);
+            node = child(node, pos, path);
+        }
+
+        int  pos = find(node, path, last);
+        if (value == PlistEdits.REMOVE)
+        {
+            if (pos < 0)
+                throw new RuntimeException("No value at path: " + path);
+            node.values.remove(pos);
+            if (node.isDict)
+                node.keys.remove(pos);
+        }
+        else if (pos >= 0)
+        {
+            node.values.set(pos, new NewValue(value));
+        }
+        else if (node.isDict && path.key(last) != null)
+        {
+            node.keys.add(path.key(last));
+            node.values.add(new NewValue(value));
+        }
+        else if (!node.isDict && arrayIndex(path, last) == node.values.size())
+        {
+            node.values.add(new NewValue(value));
+        }
+        else
+            throw new RuntimeException("No value at path: " + path);
+    }
+
+
+    // The position in the container of the entry that a step of the path refers to, or -1 if there isn't one
+    private int  find(Node node, PlistPath path, int step)
+    {
+        if (!node.isDict)
+        {
+            int  index = arrayIndex(path, step);
+            return (index >= 0 && index < node.values.size()) ? index : -1;
+        }
+
+        String  key = path.key(step);
+        if (key == null)
+            return -1;
+        for (int i = 0; i < node.keys.size(); i++)
+        {
+            Object  k = node.keys.get(i);
+            if ((k instanceof String) ? k.equals(key) : decoder.keyEquals((Integer) k, key))
+                return i;
+        }
+        return -1;
+    }
+
+
+    // As in Decoder.find(), a key that is all digits works as an array index
+    private static int  arrayIndex(PlistPath path, int step)
+    {
+        String  key = path.key(step);
+        return (key == null) ? path.index(step) : PlistPath.parseIndex(key);
+    }
+
+
+    // The container at a position in 'node', read from the document the first time it is needed
+    private Node  child(Node node, int pos, PlistPath path)
+    {
+        Object  entry = node.values.get(pos);
+        if (entry instanceof Node)
+            return (Node) entry;
+        if (entry instanceof NewValue)
+            throw new RuntimeException("Path leads inside a value set by an earlier edit: " + path);
+
+        int  ref = (Integer) entry;
+        int  type = decoder.markerType(ref);
+        if (type != 10 && type != 12 && type != 13)
+            throw new RuntimeException("No value at path: " + path);
+        Node  child = load(ref);
+        node.values.set(pos, child);
+        return child;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Appending
+
+
+    // Check whether the edits can be appended to the document. They can't if there would be
+    // more objects than the document's ref size can refer to.
+    boolean  canAppend()
+    {
+        encoder = new Encoder(decoder.numObjects);
+        topObject = add(root);
+        return Encoder.byteCountFor(encoder.numObjects() - 1) <= decoder.objectRefByteCount;
+    }
+
+
+    // Write the edits to the end of the document. 'start' is the length of the document.
+    // Returns the number of bytes written.
+    long  append(WritableByteChannel channel, long start) throws IOException
+    {
+        return encoder.append(channel, start, decoder::offset, topObject, decoder.objectRefByteCount);
+    }
+
+
+    private int  add(Node node)
+    {
+        int    count = node.values.size();
+        int[]  refs = new int[node.isDict ? count * 2 : count];
+        for (int i = 0; i < count; i++)
+        {
+            if (node.isDict) {
+                refs[i] = add(node.keys.get(i));
+                refs[count + i] = add(node.values.get(i));
+            } else {
+                refs[i] = add(node.values.get(i));
+            }
+        }
+        return encoder.addContainer(node.isDict, refs);
+    }
+
+
+    private int  add(Object entry)
+    {
+        if (entry instanceof Integer)
+            return (Integer) entry;
+        if (entry instanceof Node)
+            return add((Node) entry);
+        if (entry instanceof NewValue)
+            return encoder.flatten(((NewValue) entry).value);
+        return encoder.flatten(entry);  // new key
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Rewriting
+
+
+    // Decode the whole document, with the edits applied
+    Object  materialize()
+    {
+        return materialize(root);
+    }
+
+
+    private Object  materialize(Node node)
+    {
+        int  count = node.values.size();
+        if (node.isDict)
+        {
+            Dict  dict = new Dict(count);
+            for (int i = 0; i < count; i++)
+            {
+                Object  k = node.keys.get(i);
+                dict.put((k instanceof String) ? (String) k : decoder.readKey((Integer) k), materialize(node.values.get(i)));
+            }
+            return dict;
+        }
+        Object[]  array = new Object[count];
+        for (int i = 0; i < count; i++) {
+            array[i] = materialize(node.values.get(i));
+        }
+        return array;
+    }
+
+
+    private Object  materialize(Object entry)
+    {
+        if (entry instanceof Integer)
+            return decoder.getObject((Integer) entry);
+        if (entry instanceof Node)
+            return materialize((Node) entry);
+        return ((NewValue) entry).value;
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.caverock.bplist;
+
+/**
+ * The result of checking the structure of a bplist file with {@link BPList#validate(java.nio.file.Path)}.
+ *
+ * If the file is invalid, {@link #getError()} describes the first problem found. Any values
+ * that could not be read before that point are zero.
+ */
+public class ValidationReport
+{
+    private final String  error;
+    private final long    objectCount;
+    private final long    topObject;
+    private final int     offsetSize;
+    private final int     refSize;
+    private final int     maxDepth;
+
+
+    ValidationReport(String error)
+    {
+        this(null, 0, error);
+    }
+
+
+    ValidationReport(BPList.Trailer trailer, int maxDepth, String error)
+    {
+        this.error = error;
+        this.objectCount = (trailer != null) ? trailer.numObjects : 0;
+        this.topObject = (trailer != null) ? trailer.topObject : 0;
+        this.offsetSize = (trailer != null) ? trailer.offsetTableByteCount : 0;
+        this.refSize = (trailer != null) ? trailer.objectRefByteCount : 0;
+        this.maxDepth = maxDepth;
+    }
+
+
+    /**
+     * True if the structure of the file is valid. That doesn't guarantee that {@link BPList#decode(java.io.File)}
+     * will succeed: decode() also needs the root object to be a dict, and checks the maxObjects and maxBytes limits.
+     */
+    public boolean  isValid()
+    {
+        return error == null;
+    }
+
+
+    /**
+     * A description of the first problem found, or null if the file is valid.
+     */
+    public String  getError()
+    {
+        return error;
+    }
+
+
+    /**
+     * The number of objects in the file's offset table.
+     */
+    public long  getObjectCount()
+    {
+        return objectCount;
+    }
+
+
+    /**
+     * The index of the root object.
+     */
+    public long  getTopObject()
+    {
+        return topObject;
+    }
+
+
+    /**
+     * The size, in bytes, of each entry in the offset table.
+     */
+    public int  getOffsetSize()
+    {
+        return offsetSize;
+    }
+
+
+    /**
+     * The size, in bytes, of the object refs in arrays and dicts.
+     */
+    public int  getRefSize()
+    {
+        return refSize;
+    }
+
+
+    /**
+     * The number of levels of nested arrays and dicts, counting the root. Zero if the root
+     * object is not an array or dict.
+     */
+    public int  getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+
+    @Override
+    public String  toString()
+    {
+        if (error != null)
+            return "Invalid: " + error;
+        return String.format("Valid: %d objects, offset size %d, ref size %d, depth %d",
+                             objectCount, offsetSize, refSize, maxDepth);
+    }
+
+}
@@ -0,0 +1,296 @@
+package com.caverock.bplist;
+
+import java.util.Arrays;
+
+/**
+ * Checks the structure of a bplist without decoding any of its objects.
+ *
+ * Every offset in the offset table, every marker, and every object ref is checked, and the
+ * nesting depth is measured from the root. Nothing is read from outside the object area
+ * between the header and the offset table.
+ */
+final class Validator
+{
+    private static final int  MEASURING = -1;
+
+    private final BytesReader     in;
+    private final BPList.Trailer  trailer;
+    private final int             numObjects;
+    private final int             refSize;
+
+    // The arrays and dicts being measured
+    private int[]   stackObject = new int[16];
+    private long[]  stackRefs = new long[16];    // position of the first value ref
+    private int[]   stackCount = new int[16];    // number of value refs
+    private int[]   stackNext = new int[16];     // next value ref to visit
+    private int[]   stackDeepest = new int[16];  // depth of the deepest value so far
+    private int     stackSize = 0;
+
+
+    private Validator(BytesReader in, BPList.Trailer trailer)
+    {
+        this.in = in;
+        this.trailer = trailer;
+        this.numObjects = (int) trailer.numObjects;
+        this.refSize = trailer.objectRefByteCount;
+    }
+
+
+    static ValidationReport  validate(BytesReader in, BPList.Trailer trailer, DecodeOptions options)
+    {
+        if (!isNumberSize(trailer.offsetTableByteCount))
+            return new ValidationReport(trailer, 0, "Invalid offset table byte count: " + trailer.offsetTableByteCount);
+        if (!isNumberSize(trailer.objectRefByteCount))
+            return new ValidationReport(trailer, 0, "Invalid object ref byte count: " + trailer.objectRefByteCount);
+
+        Validator  validator = new Validator(in, trailer);
+        try {
+            validator.checkObjects();
+            return new ValidationReport(trailer, validator.measureDepth(options.getMaxDepth()), null);
+        }
+        catch (RuntimeException e)
+        {
+            return new ValidationReport(trailer, 0, e.getMessage());
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    // Check every object in the offset table, whether or not it can be reached from the root
+    private void  checkObjects()
+    {
+        long  objectsEnd = trailer.offsetTableStart;
+        for (int i = 0; i < numObjects; i++)
+        {
+            in.seek(offset(i));
+            int   marker = in.readUnsignedByte();
+            int   count = marker & 0xf;
+            long  length;   // the number of bytes after the marker and extended count
+            switch (marker >> 4)
+            {
+                case 0:
+                    if (marker != 0 && marker != 8 && marker != 9)
+                        throw error(i, "Unexpected marker variant");
+                    length = 0;
+                    break;
+                case 1:  // integer
+                    length = (count >= 4) ? 16 : 1 << count;
+                    break;
+                case 2:  // real
+                    if (count != 2 && count != 3)
+                        throw error(i, "Unsupported real number size");
+                    length = 1 << count;
+                    break;
+                case 3:  // date
+                    if (count != 3)
+                        throw error(i, "Unexpected date object format");
+                    length = 8;
+                    break;
+                case 4:  // data
+                case 5:  // ascii string
+                    length = extendedCount(i, count);
+                    break;
+                case 6:  // utf16 string
+                    length = 2L * extendedCount(i, count);
+                    break;
+                case 8:  // uid
+                    if (!isNumberSize(count + 1))
+                        throw error(i, "Invalid uid size: " + (count + 1));
+                    length = count + 1;
+                    break;
+                case 10:  // array
+                case 12:  // set
+                    length = (long) extendedCount(i, count) * refSize;
+                    break;
+                case 13:  // dict
+                    length = 2L * extendedCount(i, count) * refSize;
+                    break;
+                default:
+                    throw error(i, "Unexpected marker variant");
+            }
+            if (length > objectsEnd - in.position())
+                throw error(i, "Object runs into the offset table");
+
+            int  type = marker >> 4;
+            if (type == 10 || type == 12 || type == 13)
+                checkRefs(i, type == 13, (int) (length / refSize));
+        }
+    }
+
+
+    // Check that the refs of an array or dict are in range, and that dict keys are strings
+    private void  checkRefs(int objectIndex, boolean isDict, int refCount)
+    {
+        long  refsStart = in.position();
+        for (int i = 0; i < refCount; i++)
+        {
+            long  ref = Decoder.readNByteNumber(in, refSize);
+            if (ref < 0 || ref >= numObjects)
+                throw error(objectIndex, "Invalid object ref: " + ref);
+        }
+        if (!isDict)
+            return;
+        for (int i = 0; i < refCount / 2; i++)
+        {
+            in.seek(refsStart + (long) i * refSize);
+            int  key = (int) Decoder.readNByteNumber(in, refSize);
+            int  type = marker(key) >> 4;
+            if (type != 5 && type != 6)
+                throw error(objectIndex, "Invalid dict key. Expected string.");
+        }
+    }
+
+
+    // Read the extended count, if there is one, and check that it fits in an int
+    private int  extendedCount(int objectIndex, int count)
+    {
+        if (count != 0xf)
+            return count;
+        if (in.position() >= trailer.offsetTableStart)
+            throw error(objectIndex, "Object runs into the offset table");
+        int  next = in.readUnsignedByte();
+        int  pow = next & 0xf;
+        if ((next & 0xf0) != 0x10 || pow > 3)
+            throw error(objectIndex, "Bad extended count marker: " + next);
+        if ((1 << pow) > trailer.offsetTableStart - in.position())
+            throw error(objectIndex, "Object runs into the offset table");
+        long  value = Decoder.readNByteNumber(in, 1 << pow);
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw error(objectIndex, "Bad extended count: " + value);
+        return (int) value;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    // Returns the number of levels of nested arrays and dicts below the root, counting the root.
+    // Each container is measured once, so shared objects don't make this exponential.
+    private int  measureDepth(int limit)
+    {
+        int  top = (int) trailer.topObject;
+        if (!isContainer(marker(top)))
+            return 0;
+
+        // The depth of each object plus one, so that zero means not measured yet.
+        // Objects on the stack are MEASURING.
+        int[]  depths = new int[numObjects];
+        push(top, depths, limit);
+        while (true)
+        {
+            int  frame = stackSize - 1;
+            if (stackNext[frame] < stackCount[frame])
+            {
+                in.seek(stackRefs[frame] + (long) stackNext[frame]++ * refSize);
+                int  child = (int) Decoder.readNByteNumber(in, refSize);
+                if (depths[child] == MEASURING)
+                    throw error(child, "Reference cycle");
+                int  depth = depths[child] - 1;
+                if (depth < 0)
+                {
+                    if (isContainer(marker(child))) {
+                        push(child, depths, limit);
+                        continue;
+                    }
+                    depths[child] = 1;
+                    depth = 0;
+                }
+                // Already measured from somewhere shallower, so check it again from here
+                if (stackSize + depth > limit)
+                    throw tooDeep(limit);
+                stackDeepest[frame] = Math.max(stackDeepest[frame], depth);
+            }
+            else
+            {
+                int  depth = stackDeepest[frame] + 1;
+                depths[stackObject[frame]] = depth + 1;
+                stackSize--;
+                if (stackSize == 0)
+                    return depth;
+                stackDeepest[stackSize - 1] = Math.max(stackDeepest[stackSize - 1], depth);
+            }
+        }
+    }
+
+
+    private void  push(int objectIndex, int[] depths, int limit)
+    {
+        if (stackSize >= limit)
+            throw tooDeep(limit);
+        if (stackSize == stackObject.length)
+        {
+            int  newSize = stackSize * 2;
+            stackObject = Arrays.copyOf(stackObject, newSize);
+            stackRefs = Arrays.copyOf(stackRefs, newSize);
+            stackCount = Arrays.copyOf(stackCount, newSize);
+            stackNext = Arrays.copyOf(stackNext, newSize);
+            stackDeepest = Arrays.copyOf(stackDeepest, newSize);
+        }
+
+        // The object has already been checked, so the count can be trusted
+        in.seek(offset(objectIndex));
+        int  marker = in.readUnsignedByte();
+        int  count = extendedCount(objectIndex, marker & 0xf);
+        long  refs = in.position();
+        if ((marker >> 4) == 13)
+            refs += (long) count * refSize;   // skip the keys
+
+        stackObject[stackSize] = objectIndex;
+        stackRefs[stackSize] = refs;
+        stackCount[stackSize] = count;
+        stackNext[stackSize] = 0;
+        stackDeepest[stackSize] = 0;
+        stackSize++;
+        depths[objectIndex] = MEASURING;
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+
+
+    // Read an entry from the offset table, and check that it points into the object area
+    private long  offset(int objectIndex)
+    {
+        in.seek(trailer.offsetTableStart + (long) objectIndex * trailer.offsetTableByteCount);
+        long  offset = Decoder.readNByteNumber(in, trailer.offsetTableByteCount);
+        if (offset < BPList.HEADER_SIZE || offset >= trailer.offsetTableStart)
+            throw error(objectIndex, "Offset out of range: " + offset);
+        return offset;
+    }
+
+
+    private int  marker(int objectIndex)
+    {
+        in.seek(offset(objectIndex));
+        return in.readUnsignedByte();
+    }
+
+
+    private static boolean  isContainer(int marker)
+    {
+        int  type = marker >> 4;
+        return type == 10 || type == 12 || type == 13;
+    }
+
+
+    // The sizes that Decoder.readNByteNumber() can read
+    private static boolean  isNumberSize(int size)
+    {
+        return size == 1 || size == 2 || size == 4 || size == 8;
+    }
+
+
+    private static RuntimeException  error(int objectIndex, String msg)
+    {
+        return new RuntimeException("Object " + objectIndex + ": " + msg);
+    }
+
+
+    private static RuntimeException  tooDeep(int limit)
+    {
+        return new RuntimeException("Objects are nested too deeply. The limit is " + limit + " levels.");
+    }
+
+}
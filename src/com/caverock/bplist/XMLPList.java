@@ -0,0 +1,683 @@
+package com.caverock.bplist;
+
+import javax.xml.stream.*;
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+/**
+ * Reads and writes plists in Apple's XML format.
+ *
+ * Decoding produces the same types as {@link BPList#decode(java.io.File)}. Integers are Longs
+ * (or BigIntegers if they don't fit), reals are Doubles, dates are Instants and data is Data.
+ * Dicts of the form {@code <dict><key>CF$UID</key><integer>n</integer></dict>} are decoded as Uids,
+ * and Uids are written out the same way.
+ *
+ * Files are read and written with StAX, so no DOM is ever built.
+ */
+public class XMLPList
+{
+    private static final String  DOCTYPE = "<!DOCTYPE plist PUBLIC \"-//Apple//DTD PLIST 1.0//EN\" \"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">";
+
+
+    public static Result<Dict>  decode(String filename)
+    {
+        return decode(new File(filename));
+    }
+
+
+    public static Result<Dict>  decode(File file)
+    {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file.toPath())))
+        {
+            return decode(stream);
+        }
+        catch (IOException e)
+        {
+            return new Result<>("Cannot read file \"" + file.getPath() + "\"");
+        }
+    }
+
+
+    public static Result<Dict>  decode(InputStream stream)
+    {
+        Result<TreeBuilder>  result = parse(stream, new TreeBuilder());
+        if (!result.isSuccess())
+            return new Result<>(result.getMessage());
+        Object  root = result.getValue().root;
+        if (!(root instanceof Dict))
+            return new Result<>("Root object was not a dictionary! We don't know how to decode these! Use this file to update code!");
+        return new Result<>((Dict) root);
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Event based parsing
+
+
+    /**
+     * Read an XML plist, reporting each object to the handler as it is read. No Dict or array
+     * trees are built. Since XML plists don't record the sizes of dicts and arrays, the sizes
+     * passed to {@code startDict()} and {@code startArray()} are -1 (except for empty dicts).
+     *
+     * @return the handler that was passed in, if the file was parsed successfully.
+     */
+    public static <H extends PlistHandler> Result<H>  parse(File file, H handler)
+    {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file.toPath())))
+        {
+            return parse(stream, handler);
+        }
+        catch (IOException e)
+        {
+            return new Result<>("Cannot read file \"" + file.getPath() + "\"");
+        }
+    }
+
+
+    public static <H extends PlistHandler> Result<H>  parse(InputStream stream, H handler)
+    {
+        try
+        {
+            XMLInputFactory  factory = XMLInputFactory.newInstance();
+            // Plists reference Apple's DTD. Don't try to fetch it, or expand any entities it might define.
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            XMLStreamReader  xml = factory.createXMLStreamReader(stream);
+            try {
+                new Parser(xml, handler).parse();
+            } finally {
+                xml.close();
+            }
+            return new Result<>(handler);
+        }
+        catch (XMLStreamException | RuntimeException e)
+        {
+            return new Result<>("Error reading file: " + e.getMessage());
+        }
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Encoding
+
+
+    /**
+     * Write a plist out in XML format.
+     */
+    public static Result<File>  encode(Dict plist, File file)
+    {
+        try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(file.toPath())))
+        {
+            Result<OutputStream>  result = encode(plist, stream);
+            return result.isSuccess() ? new Result<>(file) : new Result<>(result.getMessage());
+        }
+        catch (IOException e)
+        {
+            return new Result<>("Error writing file: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Write a plist out in XML format, encoded as UTF-8. The stream is flushed, but not closed.
+     */
+    public static Result<OutputStream>  encode(Dict plist, OutputStream stream)
+    {
+        Writer  writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+        Result<Writer>  result = encode(plist, writer);
+        return result.isSuccess() ? new Result<>(stream) : new Result<>(result.getMessage());
+    }
+
+
+    /**
+     * Write a plist out in XML format. The writer is flushed, but not closed.
+     */
+    public static Result<Writer>  encode(Dict plist, Writer writer)
+    {
+        try
+        {
+            XmlWriter  out = new XmlWriter(writer);
+            report(plist, out);
+            out.finish();
+            return new Result<>(writer);
+        }
+        catch (XMLStreamException | IOException e)
+        {
+            return new Result<>("Error writing file: " + e.getMessage());
+        }
+        catch (UncheckedXMLStreamException e)
+        {
+            return new Result<>("Error writing file: " + e.getCause().getMessage());
+        }
+        catch (IllegalArgumentException e)
+        {
+            return new Result<>("Unable to encode plist: " + e.getMessage());
+        }
+    }
+
+
+    // Report a tree of objects to a handler, as if it was being parsed
+    private static void  report(Object value, PlistHandler handler)
+    {
+        if (value instanceof Map)
+        {
+            Map<?,?>  map = (Map<?,?>) value;
+            handler.startDict(map.size());
+            for (Map.Entry<?,?> entry: map.entrySet())
+            {
+                if (!(entry.getKey() instanceof String))
+                    throw new IllegalArgumentException("Invalid dict key. Expected string.");
+                handler.key((String) entry.getKey());
+                report(entry.getValue(), handler);
+            }
+            handler.endDict();
+        }
+        else if (value instanceof Object[] || value instanceof Collection)
+        {
+            Object[]  elements = (value instanceof Collection) ? ((Collection<?>) value).toArray() : (Object[]) value;
+            handler.startArray(elements.length);
+            for (Object element: elements) {
+                report(element, handler);
+            }
+            handler.endArray();
+        }
+        else if (value instanceof long[])
+        {
+            handler.startArray(((long[]) value).length);
+            for (long element: (long[]) value) {
+                handler.value(element);
+            }
+            handler.endArray();
+        }
+        else if (value instanceof double[])
+        {
+            handler.startArray(((double[]) value).length);
+            for (double element: (double[]) value) {
+                handler.value(element);
+            }
+            handler.endArray();
+        }
+        else
+            handler.value(value);
+    }
+
+
+    //------------------------------------------------------------------------------------------------------------------
+    // Conversion
+
+
+    /**
+     * Convert an XML plist file to a binary plist file.
+     *
+     * @return the number of bytes written
+     */
+    public static Result<Long>  transcodeToBinary(File xmlFile, File binaryFile)
+    {
+        Result<Dict>  plist = decode(xmlFile);
+        if (!plist.isSuccess())
+            return new Result<>(plist.getMessage());
+        return BPList.encode(plist.getValue(), binaryFile);
+    }
+
+
+    public static Result<Long>  transcodeToBinary(InputStream xml, OutputStream binary)
+    {
+        Result<Dict>  plist = decode(xml);
+        if (!plist.isSuccess())
+            return new Result<>(plist.getMessage());
+        return BPList.encode(plist.getValue(), binary);
+    }
+
+
+    //==================================================================================================================
+
+
+    // Reads the elements of an XML plist and reports them to a handler
+    private static class Parser
+    {
+        private final XMLStreamReader  xml;
+        private final PlistHandler     handler;
+        private int                    depth = 0;
+        // Set when we have read ahead, and the reader is already positioned at the next start tag
+        private boolean                haveNext = false;
+
+
+        Parser(XMLStreamReader xml, PlistHandler handler)
+        {
+            this.xml = xml;
+            this.handler = handler;
+        }
+
+
+        void  parse() throws XMLStreamException
+        {
+            while (haveNext || xml.hasNext())
+            {
+                int  event = haveNext ? xml.getEventType() : xml.next();
+                haveNext = false;
+                if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    switch (xml.getLocalName())
+                    {
+                        case "dict" -> { handler.endDict(); depth--; }
+                        case "array" -> { handler.endArray(); depth--; }
+                    }
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+
+                switch (xml.getLocalName())
+                {
+                    case "plist" -> { }
+                    case "dict" -> startDict();
+                    case "array" -> { handler.startArray(-1); depth++; }
+                    case "key" -> handler.key(xml.getElementText());
+                    default -> handler.value(readValue());
+                }
+            }
+            if (depth != 0)
+                throw new IllegalStateException("Unexpected end of file");
+        }
+
+
+        // Start a dict. Dicts that are just a CF$UID are reported as a Uid value.
+        private void  startDict() throws XMLStreamException
+        {
+            if (xml.nextTag() == XMLStreamConstants.END_ELEMENT) {
+                handler.startDict(0);
+                handler.endDict();
+                return;
+            }
+            if (!xml.getLocalName().equals("key"))
+                throw new IllegalStateException("Expected <key> but found <" + xml.getLocalName() + ">");
+
+            String  key = xml.getElementText();
+            if (key.equals("CF$UID") && xml.nextTag() == XMLStreamConstants.START_ELEMENT)
+            {
+                if (xml.getLocalName().equals("integer"))
+                {
+                    Object  uid = readValue();
+                    if (xml.nextTag() == XMLStreamConstants.END_ELEMENT && uid instanceof Long) {
+                        handler.value(new Uid((Long) uid));
+                        return;
+                    }
+                    // A normal dict that happens to have a CF$UID key
+                    openDict(key);
+                    handler.value(uid);
+                }
+                else
+                    openDict(key);
+                haveNext = true;
+                return;
+            }
+            openDict(key);
+        }
+
+
+        private void  openDict(String firstKey)
+        {
+            handler.startDict(-1);
+            handler.key(firstKey);
+            depth++;
+        }
+
+
+        // Read a scalar element. The reader is positioned at its start tag.
+        private Object  readValue() throws XMLStreamException
+        {
+            String  name = xml.getLocalName();
+            String  text = xml.getElementText();
+            if (name.equals("string"))
+                return text;
+            text = text.trim();
+            switch (name)
+            {
+                case "integer": return parseInteger(text);
+                case "real":    return parseReal(text);
+                case "true":    return Boolean.TRUE;
+                case "false":   return Boolean.FALSE;
+                case "data":    return new Data(Base64.getMimeDecoder().decode(text));
+                case "date":
+                    try {
+                        return Instant.parse(text);
+                    } catch (DateTimeParseException e) {
+                        throw new IllegalStateException("Invalid date: " + text);
+                    }
+                default:
+                    throw new IllegalStateException("Unexpected element <" + name + ">");
+            }
+        }
+
+
+        private static Object  parseInteger(String text)
+        {
+            try
+            {
+                boolean  negative = text.startsWith("-");
+                String   digits = (negative || text.startsWith("+")) ? text.substring(1) : text;
+                int      radix = 10;
+                if (digits.startsWith("0x") || digits.startsWith("0X")) {
+                    digits = digits.substring(2);
+                    radix = 16;
+                }
+                BigInteger  value = new BigInteger(digits, radix);
+                if (negative)
+                    value = value.negate();
+                return (value.bitLength() < 64) ? (Object) value.longValue() : value;
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalStateException("Invalid integer: " + text);
+            }
+        }
+
+
+        private static Double  parseReal(String text)
+        {
+            switch (text.toLowerCase(Locale.ROOT))
+            {
+                case "nan":        return Double.NaN;
+                case "inf":
+                case "+inf":
+                case "infinity":
+                case "+infinity":  return Double.POSITIVE_INFINITY;
+                case "-inf":
+                case "-infinity":  return Double.NEGATIVE_INFINITY;
+            }
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException("Invalid real: " + text);
+            }
+        }
+    }
+
+
+    //==================================================================================================================
+
+
+    // Builds a Dict tree from parser events
+    private static class TreeBuilder implements PlistHandler
+    {
+        // The dicts (Dict) and arrays (ArrayList) being built, and for dicts, the key of the current entry
+        private final List<Object>  containers = new ArrayList<>();
+        private final List<String>  keys = new ArrayList<>();
+        Object                      root;
+
+        @Override
+        public void  startDict(int size)
+        {
+            containers.add(new Dict(Math.max(size, 16)));
+            keys.add(null);
+        }
+
+        @Override
+        public void  key(String key)
+        {
+            keys.set(keys.size() - 1, key);
+        }
+
+        @Override
+        public void  endDict()
+        {
+            keys.remove(keys.size() - 1);
+            add(containers.remove(containers.size() - 1));
+        }
+
+        @Override
+        public void  startArray(int size)
+        {
+            containers.add(new ArrayList<>());
+            keys.add(null);
+        }
+
+        @Override
+        public void  endArray()
+        {
+            keys.remove(keys.size() - 1);
+            add(((List<?>) containers.remove(containers.size() - 1)).toArray());
+        }
+
+        @Override
+        public void  value(Object value)
+        {
+            add(value);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void  add(Object value)
+        {
+            if (containers.isEmpty()) {
+                root = value;
+                return;
+            }
+            Object  container = containers.get(containers.size() - 1);
+            if (container instanceof Dict)
+                ((Dict) container).put(keys.get(keys.size() - 1), value);
+            else
+                ((List<Object>) container).add(value);
+        }
+    }
+
+
+    //==================================================================================================================
+
+
+    // PlistHandler methods can't throw checked exceptions, so XMLStreamExceptions are wrapped in this
+    static class UncheckedXMLStreamException extends RuntimeException
+    {
+        private static final long  serialVersionUID = 1L;
+
+        UncheckedXMLStreamException(XMLStreamException cause)
+        {
+            super(cause);
+        }
+    }
+
+
+    // Writes parser events out as an XML plist, indented with tabs in the same way as Apple's tools.
+    // Also used by BPList.transcodeToXml().
+    static class XmlWriter implements PlistHandler
+    {
+        private final Writer           writer;
+        private final XMLStreamWriter  xml;
+        private int                    depth = 0;
+        // Whether each open dict or array has had anything written to it yet
+        private boolean[]              hasContent = new boolean[16];
+
+
+        XmlWriter(Writer writer) throws XMLStreamException
+        {
+            this.writer = writer;
+            this.xml = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeCharacters("\n");
+            xml.writeDTD(DOCTYPE);
+            xml.writeCharacters("\n");
+            xml.writeStartElement("plist");
+            xml.writeAttribute("version", "1.0");
+        }
+
+
+        void  finish() throws XMLStreamException, IOException
+        {
+            xml.writeCharacters("\n");
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
+            xml.writeEndDocument();
+            xml.flush();
+            writer.flush();
+        }
+
+
+        @Override
+        public void  startDict(int size)
+        {
+            start("dict");
+        }
+
+        @Override
+        public void  key(String key)
+        {
+            element("key", key);
+        }
+
+        @Override
+        public void  endDict()
+        {
+            end();
+        }
+
+        @Override
+        public void  startArray(int size)
+        {
+            start("array");
+        }
+
+        @Override
+        public void  endArray()
+        {
+            end();
+        }
+
+        @Override
+        public void  value(Object value)
+        {
+            if (value == null)
+                throw new IllegalArgumentException("XML plists can't hold null values");
+            else if (value instanceof Boolean)
+                empty(((Boolean) value) ? "true" : "false");
+            else if (value instanceof Long || value instanceof Integer || value instanceof Short ||
+                     value instanceof Byte || value instanceof BigInteger)
+                element("integer", value.toString());
+            else if (value instanceof Float || value instanceof Double)
+                element("real", realString(((Number) value).doubleValue(), value.toString()));
+            else if (value instanceof String)
+                element("string", (String) value);
+            else if (value instanceof Instant)
+                element("date", DateTimeFormatter.ISO_INSTANT.format(((Instant) value).truncatedTo(ChronoUnit.SECONDS)));
+            else if (value instanceof Data)
+                element("data", ((Data) value).toBase64());
+            else if (value instanceof int[])
+                element("data", new Data(toBytes((int[]) value)).toBase64());
+            else if (value instanceof Uid)
+            {
+                start("dict");
+                element("key", "CF$UID");
+                element("integer", Long.toString(((Uid) value).getUid()));
+                end();
+            }
+            else
+                throw new IllegalArgumentException("Unsupported object type: " + value.getClass().getName());
+        }
+
+
+        private static String  realString(double value, String str)
+        {
+            if (Double.isNaN(value))
+                return "nan";
+            if (Double.isInfinite(value))
+                return (value > 0) ? "+infinity" : "-infinity";
+            return str;
+        }
+
+
+        private static byte[]  toBytes(int[] data)
+        {
+            byte[]  bytes = new byte[data.length];
+            for (int i = 0; i < data.length; i++) {
+                bytes[i] = (byte) data[i];
+            }
+            return bytes;
+        }
+
+
+        // Start a new line at the current indent
+        private void  newLine() throws XMLStreamException
+        {
+            if (depth > 0)
+                hasContent[depth - 1] = true;
+            xml.writeCharacters("\n");
+            for (int i = 0; i < depth; i++) {
+                xml.writeCharacters("\t");
+            }
+        }
+
+
+        private void  start(String name)
+        {
+            try
+            {
+                newLine();
+                xml.writeStartElement(name);
+                if (depth == hasContent.length)
+                    hasContent = Arrays.copyOf(hasContent, depth * 2);
+                hasContent[depth++] = false;
+            }
+            catch (XMLStreamException e)
+            {
+                throw new UncheckedXMLStreamException(e);
+            }
+        }
+
+
+        private void  end()
+        {
+            try
+            {
+                depth--;
+                if (hasContent[depth])
+                {
+                    xml.writeCharacters("\n");
+                    for (int i = 0; i < depth; i++) {
+                        xml.writeCharacters("\t");
+                    }
+                }
+                xml.writeEndElement();
+            }
+            catch (XMLStreamException e)
+            {
+                throw new UncheckedXMLStreamException(e);
+            }
+        }
+
+
+        private void  element(String name, String text)
+        {
+            try
+            {
+                newLine();
+                xml.writeStartElement(name);
+                xml.writeCharacters(text);
+                xml.writeEndElement();
+            }
+            catch (XMLStreamException e)
+            {
+                throw new UncheckedXMLStreamException(e);
+            }
+        }
+
+
+        private void  empty(String name)
+        {
+            try
+            {
+                newLine();
+                xml.writeEmptyElement(name);
+            }
+            catch (XMLStreamException e)
+            {
+                throw new UncheckedXMLStreamException(e);
+            }
+        }
+    }
+
+}